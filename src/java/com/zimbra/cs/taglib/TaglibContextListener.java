@@ -0,0 +1,47 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.taglib;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.taglib.bean.ApptSummaryFanOut;
+import com.zimbra.cs.taglib.ngxlookup.NginxRouteLookUpConnector;
+
+/**
+ * Stops the taglib's background threads when the webapp is undeployed, so that they don't keep
+ * the webapp's class loader alive. Registered in the zm tag library descriptor.
+ */
+public class TaglibContextListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        // everything is started on first use
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        try {
+            NginxRouteLookUpConnector.shutdown();
+        } catch (ServiceException e) {
+            ZimbraLog.misc.warn("unable to shut down the route lookup connector", e);
+        }
+        ApptSummaryFanOut.shutdown();
+    }
+}
@@ -24,6 +24,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -37,6 +38,8 @@ import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
 import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.zimbra.client.ZAuthResult;
 import com.zimbra.client.ZFolder;
 import com.zimbra.client.ZMailbox;
@@ -50,7 +53,7 @@ import com.zimbra.common.util.HttpUtil;
 import com.zimbra.common.util.RemoteIP;
 import com.zimbra.common.util.WebSplitUtil;
 import com.zimbra.common.util.ZimbraLog;
-import com.zimbra.common.util.ngxlookup.NginxAuthServer;
+import com.zimbra.cs.account.AccountServiceException;
 import com.zimbra.cs.account.AuthTokenException;
 import com.zimbra.cs.taglib.bean.BeanUtils;
 import com.zimbra.cs.taglib.memcached.RouteCache;
@@ -65,11 +68,16 @@ public class ZJspSession {
     public static final String COOKIE_NAME = "ZM_AUTH_TOKEN";
     public static final String ZM_LAST_SERVER_COOKIE_NAME = "ZM_LAST_SERVER";
     private static final String C_ID  = "id";
+    private static final String C_EXPIRES = "exp";
+    private static final String ATTR_REQUEST_AUTHTOKEN = ZJspSession.class.getCanonicalName()+".requestAuthToken";
 
     private static final String CONFIG_ZIMBRA_SOAP_URL = "zimbra.soap.url";
     private static final String CONFIG_ZIMBRA_JSP_SESSION_TIMEOUT = "zimbra.jsp.session.timeout";
     private static final String CONFIG_ZIMBRA_SEARCH_USE_OFFSET = "zimbra.search.useoffset";
 
+    /** MailServiceException.NO_SUCH_MBOX, which isn't available to the web client */
+    private static final String NO_SUCH_MBOX = "mail.NO_SUCH_MBOX";
+
     public static final String Q_ZAUTHTOKEN = "zauthtoken";
     public static final String Q_ZINITMODE = "zinitmode";
     public static final String Q_ZREMBERME = "zrememberme";
@@ -86,7 +94,11 @@ public class ZJspSession {
     public ZMailbox getMailbox() { return mMbox; }
     public ZAuthToken getAuthToken() { return mAuthToken; }
 
-    private static String sSoapUrl = null;
+    private static volatile String sSoapUrl = null;
+
+    /** decoded auth tokens, keyed by token value; expired tokens are never returned */
+    private static final Cache<String, DecodedAuthToken> sDecodedAuthTokens =
+            CacheBuilder.newBuilder().maximumSize(10000).expireAfterAccess(1, TimeUnit.HOURS).build();
 
     private static final String DEFAULT_HTTPS_PORT = "443";
     private static final String DEFAULT_HTTP_PORT = "80";
@@ -378,11 +390,10 @@ public class ZJspSession {
         return useOffset != null && (useOffset.equalsIgnoreCase("true") || useOffset.equalsIgnoreCase("1"));
     }
 
-    public static synchronized String getSoapURL(PageContext context) throws ServiceException {
-    	ZimbraLog.misc.debug("Getting SOAP URL");
+    public static String getSoapURL(PageContext context) throws ServiceException {
+        ZimbraLog.misc.debug("Getting SOAP URL");
         if (WebSplitUtil.isZimbraWebClientSplitEnabled()) {
-        	ZimbraLog.misc.debug("Web split enabled");
-            RouteCache rtCache = RouteCache.getInstance();
+            ZimbraLog.misc.debug("Web split enabled");
             String accountID;
             try {
                 accountID = getAccountId(context);
@@ -393,13 +404,9 @@ public class ZJspSession {
             String route = null;
             String authProtocol = (MODE_HTTP ? PROTO_HTTP : HTTP_SSL);
             if (!accountID.equals("99999999-9999-9999-9999-999999999999")) {
-                route = rtCache.get(accountID);
+                route = RouteCache.getInstance().get(accountID);
                 if (route == null) {
-                    HttpServletRequest request = (HttpServletRequest) context.getRequest();
-                    NginxAuthServer nginxLookUpServer = NginxRouteLookUpConnector.getClient().getRouteforAccount(accountID, "zimbraId",
-                            authProtocol, HttpUtil.getVirtualHost(request), request.getRemoteAddr(), request.getHeader("Host"));
-                    rtCache.put(nginxLookUpServer.getNginxAuthUser(), nginxLookUpServer.getNginxAuthServer());
-                    route = nginxLookUpServer.getNginxAuthServer();
+                    route = lookupRoute(context, accountID, authProtocol);
                 }
             } else {
                  // For Guest Account, no lookup is needed. connect to one of the available upstream servers
@@ -408,23 +415,85 @@ public class ZJspSession {
             ZimbraLog.misc.debug("got route %s",route);
             return ((MODE_HTTP ? PROTO_HTTP : PROTO_HTTPS) + "://" + route + "/service/soap");
         }
-        if (sSoapUrl == null) {
-            sSoapUrl = (String) Config.find(context, CONFIG_ZIMBRA_SOAP_URL);
-            if (sSoapUrl == null) {
-                if (sProtocolMode.equalsIgnoreCase(PROTO_HTTPS) && !HTTP_LOCALBIND) {
-                    String httpsPort = (sHttpsPort != null && sHttpsPort.equals(DEFAULT_HTTPS_PORT)) ? "" : ":" + sHttpsPort;
-                    sSoapUrl = "https://" + sLocalHost + httpsPort +"/service/soap";
-                } else {
-                    String httpPort;
-                    if (sHttpPort.equals(RANDOM_HTTP_PORT)) // offline uses random http port
-                        httpPort = ":" + LC.zimbra_admin_service_port.value();
-                    else
-                        httpPort = sHttpPort.equals(DEFAULT_HTTP_PORT) ? "" : ":" + sHttpPort;
-                    sSoapUrl = "http://" + sLocalHost + httpPort +"/service/soap";
-                }
+        String soapUrl = sSoapUrl;
+        if (soapUrl == null) {
+            // computing the URL is idempotent, so racing callers at most compute it twice
+            soapUrl = computeSoapURL(context);
+            sSoapUrl = soapUrl;
+        }
+        return soapUrl;
+    }
+
+    private static String computeSoapURL(PageContext context) {
+        String soapUrl = (String) Config.find(context, CONFIG_ZIMBRA_SOAP_URL);
+        if (soapUrl == null) {
+            if (sProtocolMode.equalsIgnoreCase(PROTO_HTTPS) && !HTTP_LOCALBIND) {
+                String httpsPort = (sHttpsPort != null && sHttpsPort.equals(DEFAULT_HTTPS_PORT)) ? "" : ":" + sHttpsPort;
+                soapUrl = "https://" + sLocalHost + httpsPort +"/service/soap";
+            } else {
+                String httpPort;
+                if (sHttpPort.equals(RANDOM_HTTP_PORT)) // offline uses random http port
+                    httpPort = ":" + LC.zimbra_admin_service_port.value();
+                else
+                    httpPort = sHttpPort.equals(DEFAULT_HTTP_PORT) ? "" : ":" + sHttpPort;
+                soapUrl = "http://" + sLocalHost + httpPort +"/service/soap";
             }
         }
-        return sSoapUrl;
+        return soapUrl;
+    }
+
+    /**
+     * Looks up the route for an account that missed the route cache. Concurrent misses for the
+     * same account share a single nginx lookup; lookups for other accounts are never blocked.
+     */
+    private static String lookupRoute(PageContext context, String accountID, String authProtocol)
+    throws ServiceException {
+        HttpServletRequest request = (HttpServletRequest) context.getRequest();
+        return NginxRouteLookUpConnector.lookupRoute(accountID, authProtocol, HttpUtil.getVirtualHost(request),
+                request.getRemoteAddr(), request.getHeader("Host"));
+    }
+
+    /**
+     * Drops the cached route of the request's account if the exception shows that the
+     * routed server no longer has its mailbox, e.g. because the account has been moved,
+     * so that the next request looks the route up again.
+     */
+    public static void invalidateRoute(PageContext context, ServiceException e) {
+        if (!WebSplitUtil.isZimbraWebClientSplitEnabled()) {
+            return;
+        }
+        String code = e.getCode();
+        if (!ServiceException.WRONG_HOST.equals(code) && !NO_SUCH_MBOX.equals(code) &&
+                !AccountServiceException.NO_SUCH_ACCOUNT.equals(code)) {
+            return;
+        }
+        try {
+            String accountID = getAccountId(context);
+            ZimbraLog.misc.debug("dropping cached route for %s after %s", accountID, code);
+            RouteCache.getInstance().remove(accountID);
+        } catch (AuthTokenException ate) {
+            ZimbraLog.misc.debug("not dropping route for undecodable auth token", ate);
+        } catch (ServiceException se) {
+            ZimbraLog.misc.warn("unable to drop cached route", se);
+        }
+    }
+
+    /**
+     * Starts an asynchronous route lookup for the account the auth token belongs to, so that
+     * the route is cached by the time the first page asks for the SOAP URL.
+     */
+    public static void prefetchRoute(PageContext context, ZAuthToken authToken) {
+        if (!WebSplitUtil.isZimbraWebClientSplitEnabled() || authToken == null || authToken.isEmpty()) {
+            return;
+        }
+        try {
+            String accountID = getAccountId(authToken);
+            HttpServletRequest request = (HttpServletRequest) context.getRequest();
+            NginxRouteLookUpConnector.prefetchRoute(accountID, MODE_HTTP ? PROTO_HTTP : HTTP_SSL,
+                    HttpUtil.getVirtualHost(request), request.getRemoteAddr(), request.getHeader("Host"));
+        } catch (AuthTokenException e) {
+            ZimbraLog.misc.debug("not prefetching route for undecodable auth token", e);
+        }
     }
 
     private static String getAccountId (PageContext context) throws AuthTokenException {
@@ -432,8 +501,22 @@ public class ZJspSession {
         if (authToken == null) {
             authToken = new ZAuthToken((String) context.getAttribute("zimbra_authToken", PageContext.REQUEST_SCOPE));
         }
+        return getAccountId(authToken);
+    }
+
+    /**
+     * Returns the account id encoded in the auth token, without validating it.
+     */
+    public static String getAccountId(ZAuthToken authToken) throws AuthTokenException {
         if (!authToken.isEmpty()) {
             String encoded = authToken.getValue();
+            DecodedAuthToken cached = sDecodedAuthTokens.getIfPresent(encoded);
+            if (cached != null) {
+                if (!cached.isExpired()) {
+                    return cached.accountId;
+                }
+                sDecodedAuthTokens.invalidate(encoded);
+            }
             int pos = encoded.indexOf('_');
             if (pos == -1) {
                 throw new AuthTokenException("invalid authtoken format");
@@ -445,7 +528,12 @@ public class ZJspSession {
             String data = encoded.substring(pos1+1);
             try {
                 String decoded = new String(Hex.decodeHex(data.toCharArray()));
-                return (String) BlobMetaData.decode(decoded).get(C_ID);
+                Map<?,?> map = BlobMetaData.decode(decoded);
+                DecodedAuthToken token = new DecodedAuthToken((String) map.get(C_ID), (String) map.get(C_EXPIRES));
+                if (!token.isExpired()) {
+                    sDecodedAuthTokens.put(encoded, token);
+                }
+                return token.accountId;
             } catch (DecoderException e) {
                 throw new AuthTokenException("decoding exception", e);
             } catch (BlobMetaDataEncodingException e) {
@@ -456,6 +544,32 @@ public class ZJspSession {
         }
     }
 
+    /**
+     * Account id and expiry decoded from an auth token value.
+     */
+    private static final class DecodedAuthToken {
+        final String accountId;
+        final long expires;
+
+        DecodedAuthToken(String accountId, String expires) {
+            this.accountId = accountId;
+            long exp = 0;
+            if (expires != null) {
+                try {
+                    exp = Long.parseLong(expires);
+                } catch (NumberFormatException e) {
+                    // treat as already expired so it is never cached
+                    exp = -1;
+                }
+            }
+            this.expires = exp;
+        }
+
+        boolean isExpired() {
+            return expires != 0 && expires <= System.currentTimeMillis();
+        }
+    }
+
     public static ZMailbox getZMailbox(PageContext context) throws JspException {
         try {
             ZJspSession session = ZJspSession.getSession(context);
@@ -475,13 +589,17 @@ public class ZJspSession {
         ZAuthToken authToken = (ZAuthToken) context.getAttribute(ATTR_TEMP_AUTHTOKEN, PageContext.REQUEST_SCOPE);
         if (authToken != null) return authToken;
 
+        // the cookies and params don't change during a request, so only parse them once
+        authToken = (ZAuthToken) context.getAttribute(ATTR_REQUEST_AUTHTOKEN, PageContext.REQUEST_SCOPE);
+        if (authToken != null) return authToken;
+
         HttpServletRequest request= (HttpServletRequest) context.getRequest();
         ZAuthToken zat = new ZAuthToken(request, false);
-        if (!zat.isEmpty()) {
-            return zat;
+        if (zat.isEmpty()) {
+            zat = new ZAuthToken((String) request.getParameter(Q_ZAUTHTOKEN));
         }
-        zat = new ZAuthToken((String) request.getParameter(Q_ZAUTHTOKEN));
         if (!zat.isEmpty()) {
+            context.setAttribute(ATTR_REQUEST_AUTHTOKEN, zat, PageContext.REQUEST_SCOPE);
             return zat;
         }
         return null;
@@ -498,6 +616,20 @@ public class ZJspSession {
         return sess != null && sess.getAuthToken().equals(authToken);
     }
 
+    /**
+     * Returns the mailbox of the current JSP session if it was created for the given
+     * auth token, or null. Unlike {@link #getSession(PageContext)}, never creates a
+     * session or a mailbox.
+     */
+    public static ZMailbox getSessionMailbox(PageContext context, ZAuthToken authToken) {
+        HttpServletRequest req = (HttpServletRequest) context.getRequest();
+        if (authToken == null || req.getSession(false) == null)
+            return null;
+
+        ZJspSession sess = (ZJspSession) context.getAttribute(ATTR_SESSION, PageContext.SESSION_SCOPE);
+        return sess != null && sess.getAuthToken().equals(authToken) ? sess.getMailbox() : null;
+    }
+
     public static ZJspSession getSession(PageContext context) throws ServiceException {
         ZJspSession sess = (ZJspSession) context.getAttribute(ATTR_SESSION, PageContext.SESSION_SCOPE);
         ZAuthToken authToken = getAuthToken(context);
@@ -513,8 +645,14 @@ public class ZJspSession {
             // Force a authRequest with csrfSupported=1 so that the generated mailbox object has csrfToken.
             ZMailbox.Options options = new ZMailbox.Options(authToken, getSoapURL(context), true, true);
             options.setClientIp(getRemoteAddr(context));
-            ZMailbox mbox = ZMailbox.getMailbox(options);
-            mbox.getAccountInfo(false);
+            ZMailbox mbox;
+            try {
+                mbox = ZMailbox.getMailbox(options);
+                mbox.getAccountInfo(false);
+            } catch (ServiceException e) {
+                invalidateRoute(context, e);
+                throw e;
+            }
             return setSession(context, mbox);
         }
     }
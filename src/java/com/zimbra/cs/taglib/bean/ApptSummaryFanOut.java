@@ -0,0 +1,316 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.taglib.bean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.client.ZAppointmentHit;
+import com.zimbra.client.ZFolder;
+import com.zimbra.client.ZMailbox;
+import com.zimbra.client.ZMailbox.ZApptSummaryResult;
+import com.zimbra.client.ZMountpoint;
+import com.zimbra.client.ZSearchHit;
+import com.zimbra.client.ZSearchParams;
+import com.zimbra.common.auth.ZAuthToken;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.MailConstants;
+import com.zimbra.common.soap.SoapHttpTransport;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Fetches appointment summaries of several folders concurrently, for one
+ * request.
+ * <p>
+ * Folders are grouped by owner: the mailbox's own folders in one group and
+ * the mountpoints of each other account in a group per owner. The mailbox's
+ * own folders are fetched on the calling thread through the session mailbox.
+ * For each other owner a single SearchRequest for the remote folders is sent
+ * on a shared, bounded executor, targeted at the owner's account so that it
+ * is answered by the owner's mailbox server. Mountpoints are resolved with
+ * the session mailbox's folder tree, which is already loaded.
+ * <p>
+ * All groups share the deadline of the request, which also bounds each
+ * SearchRequest, including those run on the calling thread when the executor
+ * is full. Groups that haven't answered by then, or that fail, are left out
+ * of the result and logged, so that one unreachable server doesn't fail the
+ * page.
+ * <p>
+ * If the time zone isn't one the server is sure to know by its id, the
+ * mountpoints are fetched through the session mailbox instead, which sends
+ * the time zone the way the client always has.
+ */
+public class ApptSummaryFanOut {
+
+    private static final int SEARCH_LIMIT = 1000;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(8, 8, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(256),
+            new ThreadFactoryBuilder().setNameFormat("ApptSummaryFetch-%d").setDaemon(true).build());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Set<String> sTimeZoneIds = new HashSet<String>(Arrays.asList(TimeZone.getAvailableIDs()));
+
+    private final String mUrl;
+    private final ZAuthToken mAuthToken;
+    private final String mCsrfToken;
+    private final String mClientIp;
+    private final long mTimeout;
+    private final long mDeadline;
+
+    /** Transports by owner, reused for all the gaps of the request. */
+    private final Map<String, SoapHttpTransport> mTransports = new ConcurrentHashMap<String, SoapHttpTransport>();
+
+    /** Owners that timed out or failed, which aren't asked again in this request. */
+    private final Set<String> mSkipped = new HashSet<String>();
+
+    /**
+     * @param url the SOAP url to send the summary requests to
+     * @param msTimeout how long the request waits for the other owners' folders
+     */
+    public ApptSummaryFanOut(String url, ZAuthToken authToken, String csrfToken, String clientIp, long msTimeout) {
+        mUrl = url;
+        mAuthToken = authToken;
+        mCsrfToken = csrfToken;
+        mClientIp = clientIp;
+        mTimeout = msTimeout;
+        mDeadline = System.currentTimeMillis() + msTimeout;
+    }
+
+    /**
+     * Returns the appointments of the folders that answered in time, by
+     * folder id. The folders left out have no entry.
+     */
+    public Map<String, List<ZAppointmentHit>> getApptSummaries(ZMailbox mbox, final String query, final long start,
+            final long end, List<String> folderIds, final TimeZone timeZone) throws ServiceException {
+        List<String> local = new ArrayList<String>();
+        Map<String, List<ZMountpoint>> remote = new LinkedHashMap<String, List<ZMountpoint>>();
+        boolean fanOut = isKnownTimeZone(timeZone);
+        for (String folderId : folderIds) {
+            ZFolder folder = mbox.getFolderById(folderId);
+            String owner = fanOut && folder instanceof ZMountpoint ? ((ZMountpoint) folder).getOwnerId() : null;
+            if (owner == null) {
+                local.add(folderId);
+                continue;
+            }
+            List<ZMountpoint> group = remote.get(owner);
+            if (group == null) {
+                group = new ArrayList<ZMountpoint>();
+                remote.put(owner, group);
+            }
+            group.add((ZMountpoint) folder);
+        }
+
+        Map<String, List<ZAppointmentHit>> results = new HashMap<String, List<ZAppointmentHit>>();
+        if (remote.isEmpty()) {
+            fetchLocal(mbox, query, start, end, local, timeZone, results);
+            return results;
+        }
+
+        Map<String, Future<Map<String, List<ZAppointmentHit>>>> futures =
+                new LinkedHashMap<String, Future<Map<String, List<ZAppointmentHit>>>>();
+        try {
+            for (Map.Entry<String, List<ZMountpoint>> group : remote.entrySet()) {
+                final String owner = group.getKey();
+                if (mSkipped.contains(owner)) {
+                    continue;
+                }
+                final List<ZMountpoint> mountpoints = group.getValue();
+                Callable<Map<String, List<ZAppointmentHit>>> task = new Callable<Map<String, List<ZAppointmentHit>>>() {
+                    public Map<String, List<ZAppointmentHit>> call() throws ServiceException {
+                        return fetchRemote(owner, mountpoints, query, start, end, timeZone);
+                    }
+                };
+                try {
+                    futures.put(owner, sExecutor.submit(task));
+                } catch (RejectedExecutionException e) {
+                    // still bounded by the deadline, see fetchRemote
+                    ZimbraLog.webclient.debug("appointment summary fetch rejected, fetching folders of %s inline", owner);
+                    try {
+                        results.putAll(fetchRemote(owner, mountpoints, query, start, end, timeZone));
+                    } catch (ServiceException se) {
+                        mSkipped.add(owner);
+                        ZimbraLog.webclient.warn("unable to fetch appointment summaries of " + owner, se);
+                    }
+                }
+            }
+            if (!local.isEmpty()) {
+                fetchLocal(mbox, query, start, end, local, timeZone, results);
+            }
+
+            for (Map.Entry<String, Future<Map<String, List<ZAppointmentHit>>>> future : futures.entrySet()) {
+                try {
+                    long remaining = Math.max(0, mDeadline - System.currentTimeMillis());
+                    results.putAll(future.getValue().get(remaining, TimeUnit.MILLISECONDS));
+                } catch (TimeoutException e) {
+                    mSkipped.add(future.getKey());
+                    ZimbraLog.webclient.warn("timed out fetching appointment summaries of %s after %dms",
+                            future.getKey(), mTimeout);
+                } catch (ExecutionException e) {
+                    mSkipped.add(future.getKey());
+                    ZimbraLog.webclient.warn("unable to fetch appointment summaries of " + future.getKey(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServiceException.INTERRUPTED("fetching appointment summaries");
+        } finally {
+            for (Future<Map<String, List<ZAppointmentHit>>> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    private static void fetchLocal(ZMailbox mbox, String query, long start, long end, List<String> folderIds,
+            TimeZone timeZone, Map<String, List<ZAppointmentHit>> results) throws ServiceException {
+        List<ZApptSummaryResult> summaries = mbox.getApptSummaries(query, start, end,
+                folderIds.toArray(new String[folderIds.size()]), timeZone, ZSearchParams.TYPE_APPOINTMENT);
+        for (ZApptSummaryResult summary : summaries) {
+            String folderId = folderIds.contains(summary.getFolderId()) ? summary.getFolderId() :
+                    folderIds.size() == 1 ? folderIds.get(0) : null;
+            if (folderId == null) {
+                ZimbraLog.webclient.debug("unexpected appointment summaries for folder %s", summary.getFolderId());
+                continue;
+            }
+            List<ZAppointmentHit> appts = results.get(folderId);
+            if (appts == null) {
+                appts = new ArrayList<ZAppointmentHit>();
+                results.put(folderId, appts);
+            }
+            appts.addAll(summary.getAppointments());
+        }
+    }
+
+    /**
+     * Stops the executor's threads. Called when the webapp is undeployed.
+     */
+    public static void shutdown() {
+        sExecutor.shutdownNow();
+    }
+
+    private static boolean isKnownTimeZone(TimeZone timeZone) {
+        return timeZone == null || (sTimeZoneIds.contains(timeZone.getID())
+                && timeZone.hasSameRules(TimeZone.getTimeZone(timeZone.getID())));
+    }
+
+    /**
+     * Searches the owner's mailbox for the remote folders of the mountpoints
+     * and returns the appointments by mountpoint id.
+     * <p>
+     * This mirrors the SearchRequest that {@link ZMailbox#getApptSummaries}
+     * sends and parses the response with the same
+     * {@link ZAppointmentHit#addInstances}. ZMailbox itself can't be used:
+     * its search methods are synchronized on the mailbox, so the session
+     * mailbox fetches one owner at a time, and a ZMailbox per owner would
+     * first have to load the owner's folder tree. Time zones ZMailbox would
+     * send differently are kept off this path, see
+     * {@link #isKnownTimeZone}.
+     */
+    private Map<String, List<ZAppointmentHit>> fetchRemote(String owner, List<ZMountpoint> mountpoints, String query,
+            long start, long end, TimeZone timeZone) throws ServiceException {
+        // appointments come back in the owner's folder ids, possibly qualified with the owner's id
+        Map<String, String> folderIds = new HashMap<String, String>();
+        StringBuilder inFolders = new StringBuilder();
+        for (ZMountpoint mountpoint : mountpoints) {
+            String remoteId = mountpoint.getRemoteId();
+            folderIds.put(remoteId, mountpoint.getId());
+            folderIds.put(owner + ":" + remoteId, mountpoint.getId());
+            inFolders.append(inFolders.length() == 0 ? "(" : " OR ").append("inid:\"").append(remoteId).append('"');
+        }
+        inFolders.append(')');
+        if (query != null && query.trim().length() > 0) {
+            inFolders.append(" AND (").append(query).append(')');
+        }
+
+        Map<String, List<ZAppointmentHit>> results = new HashMap<String, List<ZAppointmentHit>>();
+        for (ZMountpoint mountpoint : mountpoints) {
+            results.put(mountpoint.getId(), new ArrayList<ZAppointmentHit>());
+        }
+        SoapHttpTransport transport = getTransport(owner);
+        for (int offset = 0; ; offset += SEARCH_LIMIT) {
+            long remaining = mDeadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw ServiceException.FAILURE("timed out fetching appointment summaries of " + owner, null);
+            }
+            transport.setTimeout((int) Math.min(Integer.MAX_VALUE, remaining));
+            Element req = new Element.XMLElement(MailConstants.SEARCH_REQUEST);
+            req.addAttribute(MailConstants.A_SEARCH_TYPES, ZSearchParams.TYPE_APPOINTMENT);
+            req.addAttribute(MailConstants.A_CAL_EXPAND_INST_START, start);
+            req.addAttribute(MailConstants.A_CAL_EXPAND_INST_END, end);
+            req.addAttribute(MailConstants.A_QUERY_LIMIT, SEARCH_LIMIT);
+            req.addAttribute(MailConstants.A_QUERY_OFFSET, offset);
+            if (timeZone != null) {
+                req.addElement(MailConstants.E_CAL_TZ).addAttribute(MailConstants.A_ID, timeZone.getID());
+            }
+            req.addAttribute(MailConstants.E_QUERY, inFolders.toString(), Element.Disposition.CONTENT);
+
+            Element resp = transport.invoke(req);
+            for (Element appt : resp.listElements(MailConstants.E_APPOINTMENT)) {
+                String folderId = folderIds.get(appt.getAttribute(MailConstants.A_FOLDER, null));
+                if (folderId == null) {
+                    continue;
+                }
+                // report the appointments in the mountpoint, as the session mailbox does
+                appt.addAttribute(MailConstants.A_FOLDER, folderId);
+                List<ZSearchHit> hits = new ArrayList<ZSearchHit>();
+                ZAppointmentHit.addInstances(appt, hits, timeZone, false);
+                for (ZSearchHit hit : hits) {
+                    results.get(folderId).add((ZAppointmentHit) hit);
+                }
+            }
+            if (!resp.getAttributeBool(MailConstants.A_QUERY_MORE, false)) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    private SoapHttpTransport getTransport(String owner) {
+        SoapHttpTransport transport = mTransports.get(owner);
+        if (transport == null) {
+            transport = new SoapHttpTransport(mUrl);
+            transport.setClientIp(mClientIp);
+            transport.setAuthToken(mAuthToken);
+            transport.setCsrfToken(mCsrfToken);
+            transport.setTargetAcctId(owner);
+            mTransports.put(owner, transport);
+        }
+        return transport;
+    }
+}
@@ -0,0 +1,624 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.taglib.bean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.client.ZAppointmentHit;
+import com.zimbra.client.ZMailbox;
+import com.zimbra.client.ZMailbox.ZApptSummaryResult;
+import com.zimbra.client.ZSearchParams;
+import com.zimbra.client.event.ZCreateAppointmentEvent;
+import com.zimbra.client.event.ZCreateEvent;
+import com.zimbra.client.event.ZCreateFolderEvent;
+import com.zimbra.client.event.ZDeleteEvent;
+import com.zimbra.client.event.ZEventHandler;
+import com.zimbra.client.event.ZModifyAppointmentEvent;
+import com.zimbra.client.event.ZModifyEvent;
+import com.zimbra.client.event.ZModifyFolderEvent;
+import com.zimbra.client.event.ZRefreshEvent;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Appointment summaries of a mailbox, cached by folder over the time ranges
+ * that have already been fetched.
+ * <p>
+ * For each (folder, query, time zone) the cache keeps the merged intervals
+ * it has summaries for and the appointments in them, sorted with
+ * {@link ZAppointmentHit.SortByTimeDurationFolder}. A request is answered
+ * from the cached appointments and only the parts of its range that aren't
+ * covered yet are fetched, so paging between day, week and month views
+ * doesn't fetch the same appointments again.
+ * <p>
+ * There is one cache per {@link ZMailbox}, and so per session. It holds at
+ * most {@link #MAX_APPTS} appointments, evicting the least recently used
+ * folders first, and drops folders unused for {@link #MAX_IDLE_MSECS}. It is
+ * cleared by the mailbox's change notifications and by {@link #clear()}.
+ */
+public class ApptSummaryRangeCache extends ZEventHandler {
+
+    /** Appointments kept per mailbox, over all its folders. */
+    private static final int MAX_APPTS = 5000;
+
+    /** (folder, query, time zone) combinations kept per mailbox. */
+    private static final int MAX_ENTRIES = 64;
+
+    /** How long a folder's appointments are kept without being used. */
+    private static final long MAX_IDLE_MSECS = TimeUnit.MINUTES.toMillis(30);
+
+    /** How often the caches of all mailboxes are checked for idle folders. */
+    private static final long SWEEP_INTERVAL_MSECS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Comparator<ZAppointmentHit> SORT = new ZAppointmentHit.SortByTimeDurationFolder();
+
+    private static final Cache<ZMailbox, ApptSummaryRangeCache> sCaches =
+            CacheBuilder.newBuilder().weakKeys().build();
+    private static final AtomicLong sNextSweep = new AtomicLong();
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * Bumped by {@link #clear()}, which is called by change notifications
+     * while the mailbox is locked and so mustn't lock the cache itself.
+     */
+    private final AtomicLong mGeneration = new AtomicLong();
+    private long mEntriesGeneration;
+
+    /** Ids of the cached folders and appointments, for delete notifications. */
+    private volatile Set<String> mCachedIds = newIdSet();
+
+    /** Requests fetching summaries, whose results a delete may make stale. */
+    private final AtomicInteger mFetching = new AtomicInteger();
+
+    private ApptSummaryRangeCache() {
+    }
+
+    /**
+     * Returns the cache of the given mailbox, creating it and registering it
+     * for the mailbox's change notifications on first use.
+     */
+    public static ApptSummaryRangeCache getInstance(final ZMailbox mbox) {
+        sweep();
+        try {
+            return sCaches.get(mbox, new Callable<ApptSummaryRangeCache>() {
+                public ApptSummaryRangeCache call() {
+                    ApptSummaryRangeCache cache = new ApptSummaryRangeCache();
+                    mbox.addEventHandler(cache);
+                    return cache;
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Clears the cache of the given mailbox, if it has one.
+     */
+    public static void clear(ZMailbox mbox) {
+        ApptSummaryRangeCache cache = sCaches.getIfPresent(mbox);
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    public void clear() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Drops the idle folders of every mailbox, at most once per sweep
+     * interval, so that sessions that are no longer used don't keep them.
+     */
+    private static void sweep() {
+        long now = System.currentTimeMillis();
+        long next = sNextSweep.get();
+        if (now < next || !sNextSweep.compareAndSet(next, now + SWEEP_INTERVAL_MSECS)) {
+            return;
+        }
+        for (ApptSummaryRangeCache cache : sCaches.asMap().values()) {
+            cache.expire(now - MAX_IDLE_MSECS);
+        }
+    }
+
+    private synchronized void expire(long usedBefore) {
+        Iterator<Entry> iter = mEntries.values().iterator();
+        boolean expired = false;
+        // in access order, so the first entry that was used since is the last to check
+        while (iter.hasNext()) {
+            if (iter.next().mLastUsed >= usedBefore) {
+                break;
+            }
+            iter.remove();
+            expired = true;
+        }
+        if (expired) {
+            resetCachedIds();
+        }
+    }
+
+    /**
+     * Returns the appointments of the given folders that overlap the range,
+     * sorted with {@link ZAppointmentHit.SortByTimeDurationFolder}.
+     */
+    public List<ZAppointmentHit> getApptSummaries(ZMailbox mbox, String query, long start, long end,
+            String[] folderIds, TimeZone timeZone) throws ServiceException {
+        return getApptSummaries(mbox, query, start, end, folderIds, timeZone, null);
+    }
+
+    /**
+     * The cache is only locked to find the missing parts of the range and to
+     * add what was fetched; the fetches themselves don't hold the lock. If the
+     * mailbox changed while fetching, the range is fetched again and isn't
+     * cached.
+     *
+     * @param fanOut if not null, the missing parts of the range are fetched
+     *               with it, and folders that don't answer in time are left
+     *               out of the result and fetched again next time
+     * @see #getApptSummaries(ZMailbox, String, long, long, String[], TimeZone)
+     */
+    public List<ZAppointmentHit> getApptSummaries(ZMailbox mbox, String query, long start, long end,
+            String[] folderIds, TimeZone timeZone, ApptSummaryFanOut fanOut) throws ServiceException {
+        long generation;
+        // the request works on its own references, so that entries evicted
+        // from mEntries meanwhile still answer it
+        Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        // folders missing the same parts of the range are fetched together
+        Map<List<long[]>, List<String>> fetches = new LinkedHashMap<List<long[]>, List<String>>();
+        synchronized (this) {
+            generation = mGeneration.get();
+            if (generation != mEntriesGeneration) {
+                mEntries.clear();
+                mCachedIds = newIdSet();
+                mEntriesGeneration = generation;
+            }
+            for (String folderId : folderIds) {
+                Entry entry = getEntry(folderId, query, timeZone);
+                entries.put(folderId, entry);
+                List<long[]> gaps = entry.getGaps(start, end);
+                if (gaps.isEmpty()) {
+                    continue;
+                }
+                List<String> folders = null;
+                for (Map.Entry<List<long[]>, List<String>> fetch : fetches.entrySet()) {
+                    if (sameRanges(fetch.getKey(), gaps)) {
+                        folders = fetch.getValue();
+                        break;
+                    }
+                }
+                if (folders == null) {
+                    folders = new ArrayList<String>();
+                    fetches.put(gaps, folders);
+                }
+                folders.add(folderId);
+            }
+        }
+
+        List<ZAppointmentHit> uncached = new ArrayList<ZAppointmentHit>();
+        List<Fetched> fetched = new ArrayList<Fetched>();
+        // until the results are cached, a delete can't tell whether they include what it deleted
+        mFetching.incrementAndGet();
+        try {
+            for (Map.Entry<List<long[]>, List<String>> fetch : fetches.entrySet()) {
+                for (long[] gap : fetch.getKey()) {
+                    // folders without results (e.g. timed out) stay uncovered
+                    fetched.add(new Fetched(gap[0], gap[1], fetchByFolder(mbox, query, gap[0], gap[1],
+                            fetch.getValue(), timeZone, fanOut, uncached)));
+                }
+            }
+
+            synchronized (this) {
+                if (mGeneration.get() == generation) {
+                    Set<String> cachedIds = mCachedIds;
+                    for (Fetched fetch : fetched) {
+                        for (Map.Entry<String, List<ZAppointmentHit>> folder : fetch.mByFolder.entrySet()) {
+                            entries.get(folder.getKey()).add(fetch.mStart, fetch.mEnd, folder.getValue());
+                            cachedIds.add(folder.getKey());
+                            for (ZAppointmentHit appt : folder.getValue()) {
+                                cachedIds.add(appt.getId());
+                            }
+                        }
+                    }
+                    List<List<ZAppointmentHit>> lists = new ArrayList<List<ZAppointmentHit>>(entries.size() + 1);
+                    for (Entry entry : entries.values()) {
+                        lists.add(entry.getAppts(start, end));
+                    }
+                    lists.add(sort(uncached));
+                    // only evicted once the response is built, so it can't lose appointments
+                    evict(entries.values(), start, end);
+                    return merge(lists);
+                }
+            }
+        } finally {
+            mFetching.decrementAndGet();
+        }
+
+        // the mailbox changed while fetching, so what's cached may be stale
+        uncached.clear();
+        List<List<ZAppointmentHit>> lists = new ArrayList<List<ZAppointmentHit>>();
+        for (List<ZAppointmentHit> appts : fetchByFolder(mbox, query, start, end, Arrays.asList(folderIds),
+                timeZone, fanOut, uncached).values()) {
+            lists.add(sort(appts));
+        }
+        lists.add(sort(uncached));
+        return merge(lists);
+    }
+
+    /**
+     * Brings the cache back under {@link #MAX_ENTRIES} and {@link #MAX_APPTS}
+     * by evicting the least recently used entries. If the request's own
+     * entries are still over the budget, what they cache outside the
+     * request's range is dropped, then everything.
+     */
+    private void evict(Collection<Entry> used, long start, long end) {
+        int total = 0;
+        for (Entry entry : mEntries.values()) {
+            total += entry.size();
+        }
+        if (total <= MAX_APPTS && mEntries.size() <= MAX_ENTRIES) {
+            return;
+        }
+        Iterator<Entry> iter = mEntries.values().iterator();
+        while ((total > MAX_APPTS || mEntries.size() > MAX_ENTRIES) && iter.hasNext()) {
+            Entry entry = iter.next();
+            if (!used.contains(entry)) {
+                total -= entry.size();
+                iter.remove();
+            }
+        }
+        if (total > MAX_APPTS) {
+            for (Entry entry : used) {
+                entry.trim(start, end);
+            }
+            total = 0;
+            for (Entry entry : used) {
+                total += entry.size();
+            }
+            if (total > MAX_APPTS) {
+                for (Entry entry : used) {
+                    entry.clear();
+                }
+            }
+        }
+        resetCachedIds();
+    }
+
+    private static Set<String> newIdSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    private void resetCachedIds() {
+        Set<String> ids = newIdSet();
+        for (Entry entry : mEntries.values()) {
+            entry.addIds(ids);
+        }
+        mCachedIds = ids;
+    }
+
+    /**
+     * Fetches the range and returns the appointments by folder, for the
+     * folders that answered. If the results can't be matched to the folders
+     * they are added to <code>uncached</code> instead.
+     */
+    private static Map<String, List<ZAppointmentHit>> fetchByFolder(ZMailbox mbox, String query, long start, long end,
+            List<String> folderIds, TimeZone timeZone, ApptSummaryFanOut fanOut, List<ZAppointmentHit> uncached)
+    throws ServiceException {
+        if (ZimbraLog.webclient.isDebugEnabled()) {
+            ZimbraLog.webclient.debug("fetching appointment summaries %d-%d for folders %s", start, end, folderIds);
+        }
+        Map<String, List<ZAppointmentHit>> byFolder;
+        if (fanOut != null && folderIds.size() > 1) {
+            byFolder = fanOut.getApptSummaries(mbox, query, start, end, folderIds, timeZone);
+        } else {
+            List<ZApptSummaryResult> results = mbox.getApptSummaries(query, start, end,
+                    folderIds.toArray(new String[folderIds.size()]), timeZone, ZSearchParams.TYPE_APPOINTMENT);
+            byFolder = new HashMap<String, List<ZAppointmentHit>>();
+            for (ZApptSummaryResult result : results) {
+                String folderId = result.getFolderId();
+                if (!folderIds.contains(folderId)) {
+                    folderId = folderIds.size() == 1 ? folderIds.get(0) : null;
+                }
+                if (folderId == null) {
+                    ZimbraLog.webclient.debug("unexpected appointment summaries for folder %s", result.getFolderId());
+                    for (ZApptSummaryResult r : results) {
+                        uncached.addAll(r.getAppointments());
+                    }
+                    byFolder.clear();
+                    break;
+                }
+                List<ZAppointmentHit> appts = byFolder.get(folderId);
+                if (appts == null) {
+                    appts = new ArrayList<ZAppointmentHit>();
+                    byFolder.put(folderId, appts);
+                }
+                appts.addAll(result.getAppointments());
+            }
+        }
+        // what's needed is kept here, so ZMailbox doesn't need to keep every range too
+        mbox.clearApptSummaryCache();
+        return byFolder;
+    }
+
+    private Entry getEntry(String folderId, String query, TimeZone timeZone) {
+        String key = folderId + "|" + (timeZone != null ? timeZone.getID() : "") + "|" + (query != null ? query : "");
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(folderId);
+            mEntries.put(key, entry);
+        }
+        entry.mLastUsed = System.currentTimeMillis();
+        return entry;
+    }
+
+    private static boolean sameRanges(List<long[]> a, List<long[]> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i)[0] != b.get(i)[0] || a.get(i)[1] != b.get(i)[1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<ZAppointmentHit> sort(List<ZAppointmentHit> appts) {
+        List<ZAppointmentHit> sorted = new ArrayList<ZAppointmentHit>(appts);
+        Collections.sort(sorted, SORT);
+        return sorted;
+    }
+
+    /** Merges sorted lists into one sorted list. */
+    private static List<ZAppointmentHit> merge(final List<List<ZAppointmentHit>> lists) {
+        int size = 0;
+        for (List<ZAppointmentHit> list : lists) {
+            size += list.size();
+        }
+        List<ZAppointmentHit> merged = new ArrayList<ZAppointmentHit>(size);
+        // heads of the lists, as {list index, position}
+        PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(1, lists.size()), new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+                int c = SORT.compare(lists.get(a[0]).get(a[1]), lists.get(b[0]).get(b[1]));
+                return c != 0 ? c : a[0] - b[0];
+            }
+        });
+        for (int i = 0; i < lists.size(); i++) {
+            if (!lists.get(i).isEmpty()) {
+                heads.add(new int[] {i, 0});
+            }
+        }
+        while (!heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<ZAppointmentHit> list = lists.get(head[0]);
+            merged.add(list.get(head[1]));
+            if (++head[1] < list.size()) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+
+    private static boolean overlaps(ZAppointmentHit appt, long start, long end) {
+        long apptStart = appt.getStartTime();
+        long apptEnd = appt.getEndTime();
+        if (apptEnd <= apptStart) {
+            return apptStart >= start && apptStart < end;
+        }
+        return apptStart < end && apptEnd > start;
+    }
+
+    //
+    // Change notifications
+    //
+
+    @Override
+    public void handleRefresh(ZRefreshEvent event, ZMailbox mailbox) throws ServiceException {
+        clear();
+    }
+
+    @Override
+    public void handleCreate(ZCreateEvent event, ZMailbox mailbox) throws ServiceException {
+        if (event instanceof ZCreateAppointmentEvent || event instanceof ZCreateFolderEvent) {
+            clear();
+        }
+    }
+
+    @Override
+    public void handleModify(ZModifyEvent event, ZMailbox mailbox) throws ServiceException {
+        if (event instanceof ZModifyAppointmentEvent || event instanceof ZModifyFolderEvent) {
+            clear();
+        }
+    }
+
+    /**
+     * Clears the cache if a cached folder or appointment was deleted, or if a
+     * fetch is under way, since its results may include what was deleted.
+     */
+    @Override
+    public void handleDelete(ZDeleteEvent event, ZMailbox mailbox) throws ServiceException {
+        if (mFetching.get() > 0) {
+            clear();
+            return;
+        }
+        for (String id : event.toList()) {
+            if (mCachedIds.contains(id)) {
+                clear();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Summaries fetched for a part of a request's range.
+     */
+    private static class Fetched {
+        final long mStart;
+        final long mEnd;
+        final Map<String, List<ZAppointmentHit>> mByFolder;
+
+        Fetched(long start, long end, Map<String, List<ZAppointmentHit>> byFolder) {
+            mStart = start;
+            mEnd = end;
+            mByFolder = byFolder;
+        }
+    }
+
+    /**
+     * Cached appointments of one folder and the ranges they cover.
+     */
+    private static class Entry {
+        /** Disjoint, sorted and merged {start, end} intervals. */
+        private final String mFolderId;
+        private final List<long[]> mRanges = new ArrayList<long[]>();
+        private final Map<String, ZAppointmentHit> mAppts = new HashMap<String, ZAppointmentHit>();
+        private List<ZAppointmentHit> mSorted = Collections.emptyList();
+        long mLastUsed;
+
+        Entry(String folderId) {
+            mFolderId = folderId;
+        }
+
+        int size() {
+            return mAppts.size();
+        }
+
+        void addIds(Set<String> ids) {
+            if (mAppts.isEmpty()) {
+                return;
+            }
+            ids.add(mFolderId);
+            for (ZAppointmentHit appt : mAppts.values()) {
+                ids.add(appt.getId());
+            }
+        }
+
+        void clear() {
+            mRanges.clear();
+            mAppts.clear();
+            mSorted = Collections.emptyList();
+        }
+
+        List<long[]> getGaps(long start, long end) {
+            List<long[]> gaps = new ArrayList<long[]>();
+            long from = start;
+            for (long[] range : mRanges) {
+                if (range[1] <= from) {
+                    continue;
+                }
+                if (range[0] >= end) {
+                    break;
+                }
+                if (range[0] > from) {
+                    gaps.add(new long[] {from, range[0]});
+                }
+                from = range[1];
+                if (from >= end) {
+                    break;
+                }
+            }
+            if (from < end) {
+                gaps.add(new long[] {from, end});
+            }
+            return gaps;
+        }
+
+        List<ZAppointmentHit> getAppts(long start, long end) {
+            List<ZAppointmentHit> appts = new ArrayList<ZAppointmentHit>();
+            for (ZAppointmentHit appt : mSorted) {
+                if (appt.getStartTime() >= end) {
+                    break;
+                }
+                if (overlaps(appt, start, end)) {
+                    appts.add(appt);
+                }
+            }
+            return appts;
+        }
+
+        void add(long start, long end, List<ZAppointmentHit> appts) {
+            for (ZAppointmentHit appt : appts) {
+                mAppts.put(appt.getId() + "/" + appt.getStartTime(), appt);
+            }
+            resort();
+
+            List<long[]> ranges = new ArrayList<long[]>(mRanges.size() + 1);
+            long[] added = new long[] {start, end};
+            for (long[] range : mRanges) {
+                if (range[1] < added[0] || range[0] > added[1]) {
+                    ranges.add(range);
+                } else {
+                    added = new long[] {Math.min(range[0], added[0]), Math.max(range[1], added[1])};
+                }
+            }
+            ranges.add(added);
+            Collections.sort(ranges, new Comparator<long[]>() {
+                public int compare(long[] a, long[] b) {
+                    return a[0] < b[0] ? -1 : a[0] == b[0] ? 0 : 1;
+                }
+            });
+            mRanges.clear();
+            mRanges.addAll(ranges);
+        }
+
+        /**
+         * Drops what's cached outside the given range.
+         */
+        void trim(long start, long end) {
+            List<long[]> ranges = new ArrayList<long[]>();
+            for (long[] range : mRanges) {
+                if (range[1] > start && range[0] < end) {
+                    ranges.add(new long[] {Math.max(range[0], start), Math.min(range[1], end)});
+                }
+            }
+            Iterator<ZAppointmentHit> iter = mAppts.values().iterator();
+            while (iter.hasNext()) {
+                if (!overlaps(iter.next(), start, end)) {
+                    iter.remove();
+                }
+            }
+            mRanges.clear();
+            mRanges.addAll(ranges);
+            resort();
+        }
+
+        private void resort() {
+            mSorted = new ArrayList<ZAppointmentHit>(mAppts.values());
+            Collections.sort(mSorted, SORT);
+        }
+    }
+}
@@ -58,6 +58,7 @@ import javax.servlet.ServletException;
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.JspTagException;
 import javax.servlet.jsp.PageContext;
+import com.zimbra.cs.taglib.tag.i18n.DateFormatCache;
 import com.zimbra.cs.taglib.tag.i18n.I18nUtil;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.AuthTokenException;
@@ -66,28 +67,24 @@ import com.zimbra.cs.account.AuthTokenProperties;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.TokenUtil;
 import com.zimbra.cs.mailbox.Contact;
-import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
-import com.yahoo.platform.yui.compressor.CssCompressor;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.AddressException;
 import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.text.DateFormatSymbols;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import com.zimbra.cs.account.Server;
 import java.net.MalformedURLException;
 
-import org.mozilla.javascript.ErrorReporter;
-import org.mozilla.javascript.EvaluatorException;
 import com.zimbra.common.util.ZimbraLog;
 
 public class BeanUtils {
@@ -196,19 +193,7 @@ public class BeanUtils {
         return sb == null ? text : sb.toString();
     }
 
-    private static final Pattern sAMP = Pattern.compile("&", Pattern.MULTILINE);
-    private static final Pattern sTWO_SPACES = Pattern.compile("  ", Pattern.MULTILINE);
-    private static final Pattern sLEADING_SPACE = Pattern.compile("^ ", Pattern.MULTILINE);
-    private static final Pattern sTAB = Pattern.compile("\\t", Pattern.MULTILINE);
-    private static final Pattern sLT = Pattern.compile("<", Pattern.MULTILINE);
-    private static final Pattern sGT = Pattern.compile(">", Pattern.MULTILINE);
-    private static final Pattern sDBLQT = Pattern.compile("\"", Pattern.MULTILINE);
-    private static final Pattern sNL = Pattern.compile("\\r?\\n", Pattern.MULTILINE);
     private static final Pattern sSTART = Pattern.compile("^", Pattern.MULTILINE);
-    private static final Pattern sURL = Pattern.compile(
-            "((telnet:)|((https?|ftp|gopher|news|file):\\/\\/)|(www\\.[\\w\\.\\_\\-]+))[^\\s\\xA0\\(\\)\\<\\>\\[\\]\\{\\}\'\"]*",
-            Pattern.MULTILINE);
-    private static final Pattern sHTMLDECODE = Pattern.compile("\\<.*?\\>", Pattern.MULTILINE);
 
     public static String prefixContent(String content, String prefix) {
         if (content == null || prefix == null) return "";
@@ -217,10 +202,7 @@ public class BeanUtils {
 
     public static String htmlEncode(String text) {
         if (text == null || text.length() == 0) return "";
-        String s = replaceAll(text, sAMP, "&amp;");
-        s = replaceAll(s, sLT, "&lt;");
-        s = replaceAll(s, sGT, "&gt;");
-        return s;
+        return HtmlEncoder.htmlEncode(text);
     }
 
     public static String htmlNewlineEncode(String text) {
@@ -230,23 +212,12 @@ public class BeanUtils {
 
     public static String htmlDecode(String text) {
         if (text == null || text.length() == 0) return "";
-        String s = replaceAll(text, "<br>", "\n");
-        s = replaceAll(s, sHTMLDECODE, "");
-        s = replaceAll(s, "&amp;", "&");
-        s = replaceAll(s, "&nbsp;", " ");
-        s = replaceAll(s,"&lt;","<");
-        s = replaceAll(s,"&gt;",">");
-        s = replaceAll(s,"&quot;","\"");
-        return s;
+        return HtmlEncoder.htmlDecode(text);
     }
 
     public static String encodeHtmlAttr(String text) {
         if (text == null || text.length() == 0) return "";
-        String s = replaceAll(text, sAMP, "&amp;");
-        s = replaceAll(s, sLT, "&lt;");
-        s = replaceAll(s, sGT, "&gt;");
-        s = replaceAll(s, sDBLQT, "&quot;");
-        return s;
+        return HtmlEncoder.encodeHtmlAttr(text);
     }
 
     public static String htmlRubyEncode(String base, String text) {
@@ -271,43 +242,13 @@ public class BeanUtils {
         return s;
     }
 
-    private static String internalTextToHtml(String text) {
-        if (text == null || text.length() == 0) return "";
-        String s = replaceAll(text, sAMP, "&amp;");
-        s = replaceAll(s, sTWO_SPACES, " &nbsp;");
-        s = replaceAll(s, sLEADING_SPACE, "&nbsp;");
-        s = replaceAll(s, sLT, "&lt;");
-        s = replaceAll(s, sGT, "&gt;");
-        s = replaceAll(s, sTAB, "<pre class='MsgBody-plain-tab'>\t</pre>");
-        s = replaceAll(s, sNL, "<br />");
-        return s;
-    }
-
     public static String textToHtml(String text) {
         if (text == null) return null;
-        Matcher m = sURL.matcher(text);
-        StringBuilder sb = new StringBuilder();
-        int lastIndex = 0; // lastIndex we copied from
-        while (m.find()) {
-            //if (sb == null) sb = new StringBuilder();
-            if (m.start() > lastIndex) {
-                sb.append(internalTextToHtml(text.substring(lastIndex, m.start())));
-            }
-            String url = m.group();
-            char last = url.charAt(url.length()-1);
-            if (last == '.' || last == '!' || last == ',')
-                url = url.substring(0, url.length()-1);
-
-            sb.append("<a class='zUrl' target='_blank' href='");
-            if (url.length() > 4 && url.substring(0,4).startsWith("www.")) sb.append("http://");
-            sb.append(url);
-            sb.append("'>");
-            sb.append(htmlEncode(url));
-            sb.append("</a>");
-            lastIndex = m.start()+url.length();
-        }
-        if (lastIndex < text.length()) {
-            sb.append(internalTextToHtml(text.substring(lastIndex)));
+        StringBuilder sb = new StringBuilder(text.length() + (text.length() >> 3));
+        try {
+            HtmlEncoder.linkify(text, 0, text.length(), true, sb);
+        } catch (IOException never) {
+            throw new IllegalStateException(never);
         }
         return sb.toString();
     }
@@ -319,22 +260,7 @@ public class BeanUtils {
      * @return message body after removing HTML comments, if any
      */
     public static String stripHtmlComments(String html) {
-        String REGEX = "<(?:!(?:--[\\s\\S]*?--\\s*)?(>)\\s*|(?:script|style|SCRIPT|STYLE)[\\s\\S]*?<\\/(?:script|style|SCRIPT|STYLE)>)";
-        Pattern p = Pattern.compile(REGEX);
-
-        Matcher m = p.matcher(html); // get a matcher object
-        StringBuffer sb = new StringBuffer();
-        while(m.find()) {
-            if(m.group(1) != null)
-                m.appendReplacement(sb, " ");
-            else {
-                // Use quoteReplacement() to escape the replacement text so that '$' and '/', if present
-                // in the replacement text, does not hold any special meaning.
-                m.appendReplacement(sb, Matcher.quoteReplacement(m.group()));
-            }
-        }
-        m.appendTail(sb);
-        return sb.toString();
+        return HtmlEncoder.stripHtmlComments(html);
     }
 
     /**
@@ -439,28 +365,6 @@ public class BeanUtils {
         return Math.round(dsize) + formt;
     }
 
-    private enum DateTimeFmt { DTF_TIME_SHORT, DTF_DATE_MEDIUM, DTF_DATE_SHORT }
-
-    private static DateFormat getDateFormat(PageContext pc, DateTimeFmt fmt) {
-        DateFormat df = (DateFormat) pc.getAttribute(fmt.name(), PageContext.REQUEST_SCOPE);
-        if (df == null) {
-            switch (fmt) {
-            case DTF_DATE_MEDIUM:
-                df = new SimpleDateFormat(I18nUtil.getLocalizedMessage(pc, "ZM_formatDateMediumNoYear"));
-                break;
-            case DTF_TIME_SHORT:
-                df = DateFormat.getTimeInstance(DateFormat.SHORT, pc.getRequest().getLocale());
-                break;
-            case DTF_DATE_SHORT:
-            default:
-                df = DateFormat.getDateInstance(DateFormat.SHORT, pc.getRequest().getLocale());
-                break;
-            }
-            pc.setAttribute(fmt.name(), df, PageContext.REQUEST_SCOPE);
-        }
-        return df;
-    }
-
     public static String displayMsgDate(PageContext pc, Date msg) throws ServiceException, JspException {
         return displayMsgDate(pc, msg, null, null);
     }
@@ -481,11 +385,10 @@ public class BeanUtils {
             // show hour and return
             DateFormat df;
             if (timeTemplate != null && timeTemplate.length() > 0) {
-                df = new SimpleDateFormat(I18nUtil.getLocalizedMessage(pc, timeTemplate), locale);
+                df = DateFormatCache.getPatternInstance(I18nUtil.getLocalizedMessage(pc, timeTemplate), locale, tz);
             } else {
-                df = getDateFormat(pc, DateTimeFmt.DTF_TIME_SHORT);
+                df = DateFormatCache.getTimeInstance(DateFormat.SHORT, pc.getRequest().getLocale(), tz);
             }
-            df.setTimeZone(tz);
             return df.format(msg);
         }
 
@@ -494,8 +397,7 @@ public class BeanUtils {
         long msgYear = cal.get(Calendar.YEAR);
 
         if (nowYear == msgYear) {
-            DateFormat df = new SimpleDateFormat(I18nUtil.getLocalizedMessage(pc, "ZM_formatDateMediumNoYear"),locale);
-            df.setTimeZone(tz);
+            DateFormat df = DateFormatCache.getPatternInstance(I18nUtil.getLocalizedMessage(pc, "ZM_formatDateMediumNoYear"), locale, tz);
             return df.format(msg);
         } else {
             return displayDate(pc, msg, tz, dateTemplate);
@@ -515,11 +417,10 @@ public class BeanUtils {
     private static String displayDate(PageContext pc, Date msg, TimeZone tz, String dateTemplate) {
         DateFormat df;
         if (dateTemplate != null && dateTemplate.length() > 0) {
-            df = new SimpleDateFormat(I18nUtil.getLocalizedMessage(pc, dateTemplate), I18nUtil.findLocale(pc));
+            df = DateFormatCache.getPatternInstance(I18nUtil.getLocalizedMessage(pc, dateTemplate), I18nUtil.findLocale(pc), tz);
         } else {
-            df = getDateFormat(pc, DateTimeFmt.DTF_DATE_SHORT);
+            df = DateFormatCache.getDateInstance(DateFormat.SHORT, pc.getRequest().getLocale(), tz);
         }
-        df.setTimeZone(tz);
         return df.format(msg);
     }
 
@@ -562,12 +463,7 @@ public class BeanUtils {
 			resource = "ZM_formatVoiceDate";
 		}
 
-		DateFormat df = (DateFormat) pc.getAttribute(resource, PageContext.REQUEST_SCOPE);
-		if (df == null) {
-			df = new SimpleDateFormat(I18nUtil.getLocalizedMessage(pc, resource));
-			pc.setAttribute(resource, df, PageContext.REQUEST_SCOPE);
-		}
-		df.setTimeZone(tz);
+		DateFormat df = DateFormatCache.getPatternInstance(I18nUtil.getLocalizedMessage(pc, resource), null, tz);
 		return df.format(msgCal.getTime());
 	}
 
@@ -1407,11 +1303,10 @@ public class BeanUtils {
             case UNTIL:
                 DateFormat untilDf;
                 if (dateTemplate != null && dateTemplate.length() > 0) {
-                    untilDf = new SimpleDateFormat(I18nUtil.getLocalizedMessage(pc, dateTemplate), locale);
+                    untilDf = DateFormatCache.getPatternInstance(I18nUtil.getLocalizedMessage(pc, dateTemplate), locale, timeZone);
                 } else {
-                    untilDf = DateFormat.getDateInstance(DateFormat.MEDIUM, pc.getRequest().getLocale());
+                    untilDf = DateFormatCache.getDateInstance(DateFormat.MEDIUM, pc.getRequest().getLocale(), timeZone);
                 }
-                if (timeZone != null) untilDf.setTimeZone(timeZone);
                 String untilDate = untilDf.format(repeat.getUntilDate().getDate());
                 e = I18nUtil.getLocalizedMessage(pc, "recurEndByDate", new Object[] { untilDate});
                 break;
@@ -1421,11 +1316,10 @@ public class BeanUtils {
         if (startDate != null) {
             DateFormat startDf;
             if (dateTemplate != null && dateTemplate.length() > 0) {
-                startDf = new SimpleDateFormat(I18nUtil.getLocalizedMessage(pc, dateTemplate), locale);
+                startDf = DateFormatCache.getPatternInstance(I18nUtil.getLocalizedMessage(pc, dateTemplate), locale, timeZone);
             } else {
-                startDf = DateFormat.getDateInstance(DateFormat.MEDIUM, pc.getRequest().getLocale());
+                startDf = DateFormatCache.getDateInstance(DateFormat.MEDIUM, pc.getRequest().getLocale(), timeZone);
             }
-            if (timeZone != null) startDf.setTimeZone(timeZone);
             s = I18nUtil.getLocalizedMessage(pc, "recurStart", new Object[] { startDf.format(startDate)});
 
         }
@@ -1446,20 +1340,15 @@ public class BeanUtils {
         DateFormat tf;
 
         if (dateTemplate != null && dateTemplate.length() > 0) {
-            df = new SimpleDateFormat(I18nUtil.getLocalizedMessage(pc, dateTemplate), locale);
+            df = DateFormatCache.getPatternInstance(I18nUtil.getLocalizedMessage(pc, dateTemplate), locale, timeZone);
         } else {
-            df = DateFormat.getDateInstance(DateFormat.FULL, locale);
+            df = DateFormatCache.getDateInstance(DateFormat.FULL, locale, timeZone);
         }
 
         if (timeTemplate != null && timeTemplate.length() > 0) {
-            tf = new SimpleDateFormat(I18nUtil.getLocalizedMessage(pc, timeTemplate), locale);
+            tf = DateFormatCache.getPatternInstance(I18nUtil.getLocalizedMessage(pc, timeTemplate), locale, timeZone);
         } else {
-            tf = DateFormat.getTimeInstance(DateFormat.SHORT, locale);
-        }
-
-        if (timeZone != null) {
-            df.setTimeZone(timeZone);
-            tf.setTimeZone(timeZone);
+            tf = DateFormatCache.getTimeInstance(DateFormat.SHORT, locale, timeZone);
         }
 
         boolean sameDate = isSameDate(startCal, endCal);
@@ -1498,6 +1387,7 @@ public class BeanUtils {
 
     public static void clearApptSummaryCache(ZMailboxBean mailbox) {
         mailbox.getMailbox().clearApptSummaryCache();
+        ApptSummaryRangeCache.clear(mailbox.getMailbox());
     }
 
     public static void refreshPrefs(ZMailboxBean mailbox) throws JspTagException {
@@ -1746,13 +1636,9 @@ public class BeanUtils {
      */
     public static boolean isAllowedUA(com.zimbra.cs.taglib.bean.ZUserAgentBean ua, String[] allowedUA) {
         if (allowedUA == null || allowedUA.length == 0) return true;
-        Pattern pattern;
-        Matcher m;
         for (String str : allowedUA) {
-            pattern = Pattern.compile(str);
             if (ua.getUserAgent() == null) return false;
-            m = pattern.matcher(ua.getUserAgent());
-            if (m.find())
+            if (getAllowedPattern(str).matcher(ua.getUserAgent()).find())
                 return true;
         }
         return false;
@@ -1767,17 +1653,29 @@ public class BeanUtils {
      */
     public static boolean isAllowedIP(String remoteAddr, String[] allowedIP) {
         if (allowedIP == null || allowedIP.length == 0) return true;
-        Pattern pattern;
-        Matcher m;
         for (String str : allowedIP) {
-            pattern = Pattern.compile(str);
-            m = pattern.matcher(remoteAddr);
-            if (m.find())
+            if (getAllowedPattern(str).matcher(remoteAddr).find())
                 return true;
         }
         return false;
     }
 
+    /**
+     * Compiled zimbraWebClientLogin/outURLAllowedUA/IP patterns, keyed by the configured regex.
+     * A config change yields new keys, and the patterns no longer configured age out.
+     */
+    private static final Cache<String, Pattern> sAllowedPatterns =
+            CacheBuilder.newBuilder().maximumSize(256).build();
+
+    private static Pattern getAllowedPattern(String regex) {
+        Pattern pattern = sAllowedPatterns.getIfPresent(regex);
+        if (pattern == null) {
+            pattern = Pattern.compile(regex);
+            sAllowedPatterns.put(regex, pattern);
+        }
+        return pattern;
+    }
+
     /**
      * Checks whether email features and tabs are enabled for a user or for a delegated admin access.
      * Returns true if mail feature is enabled for a user or if zimbraFeatureAdminMailEnabled is set to
@@ -1965,50 +1863,7 @@ public class BeanUtils {
 		return javaLocaleId(locale).toLowerCase().replace('_','-');
 	}
     public static java.lang.String yuiCompress(java.lang.String s, String type){
-        try{
-            StringWriter out = new StringWriter();
-            StringReader in = new StringReader(s);
-            int linebreakpos = -1;
-            if(type.equalsIgnoreCase("css")){
-               CssCompressor compressor = new CssCompressor(in);
-                in.close(); in = null;
-                compressor.compress(out, linebreakpos);
-                s = out.toString();
-            }else if(type.equalsIgnoreCase("js")){
-                JavaScriptCompressor jsc = new JavaScriptCompressor(in,new ErrorReporter() {
-
-                        public void warning(String message, String sourceName,
-                                int line, String lineSource, int lineOffset) {
-                            if (line < 0) {
-                                System.err.println("\nyuiCompress:[WARNING] " + message);
-                            } else {
-                                System.err.println("\nyuiCompress:[WARNING] " + line + ':' + lineOffset + ':' + message);
-                            }
-                        }
-
-                        public void error(String message, String sourceName,
-                                int line, String lineSource, int lineOffset) {
-                            if (line < 0) {
-                                System.err.println("\nyuiCompress:[ERROR] " + message);
-                            } else {
-                                System.err.println("\nyuiCompress:[ERROR] " + line + ':' + lineOffset + ':' + message);
-                            }
-                        }
-
-                        public EvaluatorException runtimeError(String message, String sourceName,
-                                int line, String lineSource, int lineOffset) {
-                            error(message, sourceName, line, lineSource, lineOffset);
-                            return new EvaluatorException(message);
-                        }
-                    });
-                jsc.compress(out,linebreakpos,true,false,true,false);
-                s = out.toString();
-            }
-        }catch (Exception ex){
-           System.err.println("\nyuiCompress:[EXCEPTION] " + ex);
-           ex.printStackTrace(System.err);
-        }
-        return s;
+        return YuiCompressCache.compress(s, type);
     }
 
     public static String capitalize(String s) {
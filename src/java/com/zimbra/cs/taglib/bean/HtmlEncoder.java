@@ -0,0 +1,506 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.taglib.bean;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Single-pass HTML encoders. Each method scans its input once and appends the result to the
+ * given {@link Appendable} (a StringBuilder, or the JspWriter when called from a tag), producing
+ * exactly the same output as the chained regex replacements BeanUtils used to do.
+ */
+public final class HtmlEncoder {
+
+    private static final String NBSP = "&nbsp;";
+    private static final String TAB = "<pre class='MsgBody-plain-tab'>\t</pre>";
+    private static final String BR = "<br />";
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final Pattern sURL = Pattern.compile(
+            "((telnet:)|((https?|ftp|gopher|news|file):\\/\\/)|(www\\.[\\w\\.\\_\\-]+))[^\\s\\xA0\\(\\)\\<\\>\\[\\]\\{\\}\'\"]*",
+            Pattern.MULTILINE);
+
+    private HtmlEncoder() {
+    }
+
+    public static String htmlEncode(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        try {
+            htmlEncode(text, sb);
+        } catch (IOException never) {
+            throw new IllegalStateException(never);
+        }
+        return sb.length() == text.length() ? text : sb.toString();
+    }
+
+    public static String encodeHtmlAttr(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        try {
+            encodeHtmlAttr(text, sb);
+        } catch (IOException never) {
+            throw new IllegalStateException(never);
+        }
+        return sb.length() == text.length() ? text : sb.toString();
+    }
+
+    public static String htmlDecode(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        try {
+            htmlDecode(text, sb);
+        } catch (IOException never) {
+            throw new IllegalStateException(never);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Escapes &amp;, &lt; and &gt;.
+     */
+    public static void htmlEncode(CharSequence text, Appendable out) throws IOException {
+        htmlEncode(text, 0, text.length(), out);
+    }
+
+    public static void htmlEncode(CharSequence text, int start, int end, Appendable out) throws IOException {
+        int last = start;
+        for (int i = start; i < end; i++) {
+            String rep;
+            switch (text.charAt(i)) {
+                case '&': rep = "&amp;"; break;
+                case '<': rep = "&lt;"; break;
+                case '>': rep = "&gt;"; break;
+                default: continue;
+            }
+            out.append(text, last, i).append(rep);
+            last = i + 1;
+        }
+        out.append(text, last, end);
+    }
+
+    /**
+     * Escapes &amp;, &lt;, &gt; and double quotes.
+     */
+    public static void encodeHtmlAttr(CharSequence text, Appendable out) throws IOException {
+        int last = 0;
+        int len = text.length();
+        for (int i = 0; i < len; i++) {
+            String rep;
+            switch (text.charAt(i)) {
+                case '&': rep = "&amp;"; break;
+                case '<': rep = "&lt;"; break;
+                case '>': rep = "&gt;"; break;
+                case '"': rep = "&quot;"; break;
+                default: continue;
+            }
+            out.append(text, last, i).append(rep);
+            last = i + 1;
+        }
+        out.append(text, last, len);
+    }
+
+    /**
+     * Converts plain text to HTML: escapes &amp;, &lt; and &gt;, keeps runs of spaces and spaces
+     * at the start of a line, wraps tabs and turns line breaks into &lt;br /&gt;.
+     *
+     * @param lineStart whether <code>start</code> is at the beginning of a line
+     */
+    public static void textToHtml(CharSequence text, int start, int end, boolean lineStart, Appendable out)
+    throws IOException {
+        int last = start;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            String rep;
+            int skip = 0;
+            switch (c) {
+                case '&': rep = "&amp;"; break;
+                case '<': rep = "&lt;"; break;
+                case '>': rep = "&gt;"; break;
+                case '\t': rep = TAB; break;
+                case '\n': rep = BR; break;
+                case '\r':
+                    if (i + 1 < end && text.charAt(i + 1) == '\n') {
+                        rep = BR;
+                        skip = 1;
+                    } else {
+                        rep = null;
+                    }
+                    break;
+                case ' ':
+                    boolean pair = i + 1 < end && text.charAt(i + 1) == ' ';
+                    boolean atLineStart = i == start ? lineStart : isLineTerminator(text.charAt(i - 1));
+                    if (pair) {
+                        rep = atLineStart ? NBSP + NBSP : " " + NBSP;
+                        skip = 1;
+                    } else {
+                        rep = atLineStart ? NBSP : null;
+                    }
+                    break;
+                default:
+                    rep = null;
+            }
+            if (rep != null) {
+                out.append(text, last, i).append(rep);
+                i += skip;
+                last = i + 1;
+            }
+        }
+        out.append(text, last, end);
+    }
+
+    /**
+     * Converts plain text to HTML like {@link #textToHtml(CharSequence, int, int, boolean, Appendable)},
+     * turning URLs into links.
+     *
+     * @param lineStart whether <code>start</code> is at the beginning of a line
+     */
+    public static void linkify(CharSequence text, int start, int end, boolean lineStart, Appendable out)
+    throws IOException {
+        Matcher m = sURL.matcher(text);
+        m.region(start, end);
+        int lastIndex = start; // lastIndex we copied from
+        while (m.find()) {
+            if (m.start() > lastIndex) {
+                textToHtml(text, lastIndex, m.start(), lastIndex == start ? lineStart : true, out);
+            }
+            int urlEnd = m.end();
+            char last = text.charAt(urlEnd - 1);
+            if (last == '.' || last == '!' || last == ',')
+                urlEnd--;
+
+            out.append("<a class='zUrl' target='_blank' href='");
+            if (urlEnd - m.start() > 4 && startsWith(text, m.start(), "www.")) out.append("http://");
+            out.append(text, m.start(), urlEnd);
+            out.append("'>");
+            htmlEncode(text, m.start(), urlEnd, out);
+            out.append("</a>");
+            lastIndex = urlEnd;
+        }
+        if (lastIndex < end) {
+            textToHtml(text, lastIndex, end, lastIndex == start ? lineStart : true, out);
+        }
+    }
+
+    /**
+     * Streams plain text from <code>in</code> to <code>out</code> as HTML, a buffer at a time.
+     * URLs are turned into links until <code>linkifyLimit</code> characters have been converted;
+     * the rest of the text is only escaped. Without a limit the output is the same as
+     * {@link BeanUtils#textToHtml(String)}.
+     */
+    public static void textToHtml(Reader in, Appendable out, long linkifyLimit) throws IOException {
+        textToHtml(in, out, linkifyLimit, BUFFER_SIZE);
+    }
+
+    static void textToHtml(Reader in, Appendable out, long linkifyLimit, int bufferSize) throws IOException {
+        char[] buf = new char[bufferSize];
+        StringBuilder pending = new StringBuilder(bufferSize);
+        long converted = 0;
+        boolean lineStart = true;
+        boolean eof = false;
+        while (!eof) {
+            int n = in.read(buf);
+            if (n == -1) {
+                eof = true;
+            } else {
+                pending.append(buf, 0, n);
+            }
+            int len = pending.length();
+            if (len == 0) {
+                continue;
+            }
+            boolean link = converted < linkifyLimit;
+            int cut = eof ? len : findCut(pending, link);
+            if (cut == 0 && link && converted + len > linkifyLimit) {
+                // one token runs past the limit, stop looking for URLs instead of buffering it
+                link = false;
+                cut = findCut(pending, false);
+            }
+            if (cut == 0) {
+                continue;
+            }
+            if (link) {
+                linkify(pending, 0, cut, lineStart, out);
+            } else {
+                textToHtml(pending, 0, cut, lineStart, out);
+            }
+            converted += cut;
+            lineStart = isLineTerminator(pending.charAt(cut - 1));
+            pending.delete(0, cut);
+        }
+    }
+
+    /**
+     * Finds the last position text can be split at without changing the output: not inside a
+     * pair of spaces or a CRLF, and, when looking for URLs, only after whitespace, which a URL
+     * never spans.
+     *
+     * @return the split position, or 0 if there is none
+     */
+    private static int findCut(CharSequence text, boolean link) {
+        int len = text.length();
+        for (int p = len - 1; p > 0; p--) {
+            char c = text.charAt(p - 1);
+            char next = text.charAt(p);
+            if (c == ' ') {
+                if (next != ' ') {
+                    return p;
+                }
+            } else if (c == '\r') {
+                if (next != '\n') {
+                    return p;
+                }
+            } else if (!link || c == '\n' || c == '\t' || c == '\u000B' || c == '\f') {
+                return p;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Turns &lt;br&gt; into a newline, strips other tags that don't span lines and decodes
+     * the &amp;amp;, &amp;nbsp;, &amp;lt;, &amp;gt; and &amp;quot; entities.
+     */
+    public static void htmlDecode(CharSequence text, Appendable out) throws IOException {
+        decodeEntities(stripTags(text), out);
+    }
+
+    /**
+     * @return text with &lt;br&gt; replaced by a newline and other single-line tags removed
+     */
+    private static CharSequence stripTags(CharSequence text) {
+        int len = text.length();
+        StringBuilder sb = null;
+        int last = 0;
+        int i = 0;
+        while (i < len) {
+            if (text.charAt(i) != '<') {
+                i++;
+                continue;
+            }
+            int end;
+            String rep;
+            if (startsWith(text, i, "<br>")) {
+                end = i + 4;
+                rep = "\n";
+            } else {
+                end = findTagEnd(text, i + 1);
+                if (end == -1) {
+                    i++;
+                    continue;
+                }
+                rep = "";
+            }
+            if (sb == null) {
+                sb = new StringBuilder(len);
+            }
+            sb.append(text, last, i).append(rep);
+            last = i = end;
+        }
+        if (sb == null) {
+            return text;
+        }
+        return sb.append(text, last, len);
+    }
+
+    /**
+     * @return the index after the first '&gt;' reached from <code>from</code> without crossing a line
+     *         terminator or a &lt;br&gt;, or -1
+     */
+    private static int findTagEnd(CharSequence text, int from) {
+        int len = text.length();
+        for (int j = from; j < len; j++) {
+            char c = text.charAt(j);
+            if (c == '>') {
+                return j + 1;
+            } else if (isLineTerminator(c) || (c == '<' && startsWith(text, j, "<br>"))) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static final String[] RAW_TEXT_TAGS = { "script", "style", "SCRIPT", "STYLE" };
+
+    /**
+     * Replaces HTML comments (and empty &lt;!&gt; declarations), together with the whitespace
+     * following them, by a single space. Comments inside script and style elements are kept.
+     * Runs in linear time: once a search for a closing sequence fails, later searches for it,
+     * which could only look at a suffix of the same text, are skipped.
+     */
+    public static String stripHtmlComments(String html) {
+        int len = html.length();
+        StringBuilder sb = null;
+        int last = 0;
+        boolean noCommentClose = false;
+        boolean noRawTextClose = false;
+        int i = html.indexOf('<');
+        while (i != -1) {
+            int end = -1;
+            int next = i + 1;
+            if (next < len && html.charAt(next) == '!') {
+                next++;
+                if (!noCommentClose && html.startsWith("--", next)) {
+                    end = findCommentClose(html, next + 2);
+                    noCommentClose = end == -1;
+                }
+                if (end == -1 && next < len && html.charAt(next) == '>') {
+                    end = next + 1;
+                }
+                if (end != -1) {
+                    while (end < len && isWhitespace(html.charAt(end))) {
+                        end++;
+                    }
+                    if (sb == null) {
+                        sb = new StringBuilder(len);
+                    }
+                    sb.append(html, last, i).append(' ');
+                    last = end;
+                }
+            } else if (!noRawTextClose) {
+                int tag = matchRawTextTag(html, next);
+                if (tag != -1) {
+                    // leave the element alone
+                    end = findRawTextClose(html, next + RAW_TEXT_TAGS[tag].length());
+                    noRawTextClose = end == -1;
+                }
+            }
+            i = html.indexOf('<', end == -1 ? i + 1 : end);
+        }
+        if (sb == null) {
+            return html;
+        }
+        return sb.append(html, last, len).toString();
+    }
+
+    /**
+     * @return the index after the first "--", optional whitespace and '&gt;' at or after
+     *         <code>from</code>, or -1
+     */
+    private static int findCommentClose(String html, int from) {
+        int len = html.length();
+        for (int j = html.indexOf("--", from); j != -1; j = html.indexOf("--", j + 1)) {
+            int k = j + 2;
+            while (k < len && isWhitespace(html.charAt(k))) {
+                k++;
+            }
+            if (k < len && html.charAt(k) == '>') {
+                return k + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index after the first script or style end tag at or after <code>from</code>, or -1
+     */
+    private static int findRawTextClose(String html, int from) {
+        for (int j = html.indexOf("</", from); j != -1; j = html.indexOf("</", j + 1)) {
+            int tag = matchRawTextTag(html, j + 2);
+            if (tag != -1) {
+                int k = j + 2 + RAW_TEXT_TAGS[tag].length();
+                if (k < html.length() && html.charAt(k) == '>') {
+                    return k + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int matchRawTextTag(String html, int offset) {
+        for (int k = 0; k < RAW_TEXT_TAGS.length; k++) {
+            if (html.startsWith(RAW_TEXT_TAGS[k], offset)) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The characters matched by the regex '\\s'.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static final String[] ENTITIES = { "nbsp;", "lt;", "gt;", "quot;" };
+    private static final char[] DECODED = { ' ', '<', '>', '"' };
+
+    private static void decodeEntities(CharSequence text, Appendable out) throws IOException {
+        int len = text.length();
+        int last = 0;
+        int i = 0;
+        while (i < len) {
+            if (text.charAt(i) != '&') {
+                i++;
+                continue;
+            }
+            char rep;
+            int end;
+            int entity = matchEntity(text, i + 1);
+            if (entity != -1) {
+                rep = DECODED[entity];
+                end = i + 1 + ENTITIES[entity].length();
+            } else if (startsWith(text, i + 1, "amp;")) {
+                // the '&' an &amp; decodes to can combine with the text after it into one more entity
+                entity = matchEntity(text, i + 5);
+                if (entity != -1) {
+                    rep = DECODED[entity];
+                    end = i + 5 + ENTITIES[entity].length();
+                } else {
+                    rep = '&';
+                    end = i + 5;
+                }
+            } else {
+                i++;
+                continue;
+            }
+            out.append(text, last, i).append(rep);
+            last = i = end;
+        }
+        out.append(text, last, len);
+    }
+
+    private static int matchEntity(CharSequence text, int offset) {
+        for (int k = 0; k < ENTITIES.length; k++) {
+            if (startsWith(text, offset, ENTITIES[k])) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(CharSequence text, int offset, String prefix) {
+        int plen = prefix.length();
+        if (offset + plen > text.length()) {
+            return false;
+        }
+        for (int k = 0; k < plen; k++) {
+            if (text.charAt(offset + k) != prefix.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The characters after which a MULTILINE '^' matches, and which '.' does not match.
+     */
+    static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.taglib.bean;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.apache.commons.codec.binary.Hex;
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.EvaluatorException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.yahoo.platform.yui.compressor.CssCompressor;
+import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Cache of YUI compressor output, keyed by type and the SHA-256 of the input.
+ * <p>
+ * Compressed output is kept in memory, bounded by total size. If the
+ * <code>yuiCompressCacheDir</code> JNDI environment entry names a directory,
+ * output is also written there so that it survives restarts, and is read back
+ * on memory misses. The directory is kept under
+ * <code>yuiCompressCacheDirSize</code> bytes by deleting the least recently
+ * used files, and files unused for <code>yuiCompressCacheDirMaxAge</code>
+ * days are deleted too.
+ */
+public final class YuiCompressCache {
+
+    public static final String TYPE_CSS = "css";
+    public static final String TYPE_JS = "js";
+
+    private static final long DEFAULT_MAX_CHARS = 16 * 1024 * 1024;
+    private static final long DEFAULT_MAX_DISK_BYTES = 64 * 1024 * 1024;
+    private static final long DEFAULT_MAX_DISK_AGE_DAYS = 30;
+    private static final String FILE_SUFFIX = ".min";
+
+    private static final Cache<String, String> sCompressed;
+    private static final Path sCacheDir;
+    private static final long sMaxDiskBytes;
+    private static final long sMaxDiskAge;
+
+    /** bytes in the cache directory as of the last trim plus those written since, or -1 if not known yet */
+    private static final AtomicLong sDiskBytes = new AtomicLong(-1);
+    private static final AtomicBoolean sTrimming = new AtomicBoolean();
+
+    static {
+        long maxChars = DEFAULT_MAX_CHARS;
+        long maxDiskBytes = DEFAULT_MAX_DISK_BYTES;
+        long maxDiskAgeDays = DEFAULT_MAX_DISK_AGE_DAYS;
+        String dir = null;
+        try {
+            Context envCtx = (Context) new InitialContext().lookup("java:comp/env");
+            maxChars = getLong(envCtx, "yuiCompressCacheSize", maxChars);
+            dir = getString(envCtx, "yuiCompressCacheDir");
+            maxDiskBytes = getLong(envCtx, "yuiCompressCacheDirSize", maxDiskBytes);
+            maxDiskAgeDays = getLong(envCtx, "yuiCompressCacheDirMaxAge", maxDiskAgeDays);
+        } catch (NamingException ne) {
+            ZimbraLog.webclient.debug("no naming context, using default yuiCompress cache settings");
+        }
+        sCompressed = CacheBuilder.newBuilder()
+                .maximumWeight(maxChars)
+                .weigher(new Weigher<String, String>() {
+                    public int weigh(String key, String value) {
+                        return key.length() + value.length();
+                    }
+                })
+                .build();
+        sCacheDir = initCacheDir(dir);
+        sMaxDiskBytes = maxDiskBytes;
+        sMaxDiskAge = TimeUnit.DAYS.toMillis(maxDiskAgeDays);
+    }
+
+    private YuiCompressCache() {
+    }
+
+    /**
+     * Returns the compressed form of the CSS or JavaScript source. The input
+     * is returned unchanged for any other type or if it can't be compressed.
+     */
+    public static String compress(final String s, String type) {
+        if (s == null || type == null) {
+            return s;
+        }
+        final String t;
+        if (type.equalsIgnoreCase(TYPE_CSS)) {
+            t = TYPE_CSS;
+        } else if (type.equalsIgnoreCase(TYPE_JS)) {
+            t = TYPE_JS;
+        } else {
+            return s;
+        }
+
+        final String key = t + "-" + sha256(s);
+        try {
+            return sCompressed.get(key, new Callable<String>() {
+                public String call() throws IOException {
+                    String out = readFromDisk(key);
+                    if (out == null) {
+                        out = compressUncached(s, t);
+                        writeToDisk(key, out);
+                    }
+                    return out;
+                }
+            });
+        } catch (ExecutionException e) {
+            logFailure(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            logFailure(e.getCause());
+        }
+        return s;
+    }
+
+    public static long size() {
+        return sCompressed.size();
+    }
+
+    public static void clear() {
+        sCompressed.invalidateAll();
+    }
+
+    private static String compressUncached(String s, String type) throws IOException {
+        StringWriter out = new StringWriter();
+        StringReader in = new StringReader(s);
+        int linebreakpos = -1;
+        if (TYPE_CSS.equals(type)) {
+            CssCompressor compressor = new CssCompressor(in);
+            in.close();
+            compressor.compress(out, linebreakpos);
+        } else {
+            JavaScriptCompressor jsc = new JavaScriptCompressor(in, new ErrorReporter() {
+
+                    public void warning(String message, String sourceName,
+                            int line, String lineSource, int lineOffset) {
+                        if (line < 0) {
+                            System.err.println("\nyuiCompress:[WARNING] " + message);
+                        } else {
+                            System.err.println("\nyuiCompress:[WARNING] " + line + ':' + lineOffset + ':' + message);
+                        }
+                    }
+
+                    public void error(String message, String sourceName,
+                            int line, String lineSource, int lineOffset) {
+                        if (line < 0) {
+                            System.err.println("\nyuiCompress:[ERROR] " + message);
+                        } else {
+                            System.err.println("\nyuiCompress:[ERROR] " + line + ':' + lineOffset + ':' + message);
+                        }
+                    }
+
+                    public EvaluatorException runtimeError(String message, String sourceName,
+                            int line, String lineSource, int lineOffset) {
+                        error(message, sourceName, line, lineSource, lineOffset);
+                        return new EvaluatorException(message);
+                    }
+                });
+            jsc.compress(out, linebreakpos, true, false, true, false);
+        }
+        return out.toString();
+    }
+
+    private static void logFailure(Throwable ex) {
+        System.err.println("\nyuiCompress:[EXCEPTION] " + ex);
+        ex.printStackTrace(System.err);
+    }
+
+    private static String sha256(String s) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Hex.encodeHexString(digest.digest(s.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+    }
+
+    //
+    // On-disk tier
+    //
+
+    private static Path initCacheDir(String dir) {
+        if (dir == null || dir.trim().length() == 0) {
+            return null;
+        }
+        try {
+            return Files.createDirectories(Paths.get(dir.trim()));
+        } catch (IOException e) {
+            ZimbraLog.webclient.warn("unable to create yuiCompress cache directory " + dir, e);
+            return null;
+        }
+    }
+
+    private static String readFromDisk(String key) {
+        if (sCacheDir == null) {
+            return null;
+        }
+        Path file = sCacheDir.resolve(key + FILE_SUFFIX);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            String value = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            // the modification time is the file's last use, for trimming
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return value;
+        } catch (IOException e) {
+            ZimbraLog.webclient.debug("unable to read yuiCompress cache file " + file, e);
+            return null;
+        }
+    }
+
+    private static void writeToDisk(String key, String value) {
+        if (sCacheDir == null) {
+            return;
+        }
+        Path file = sCacheDir.resolve(key + FILE_SUFFIX);
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        try {
+            Path tmp = Files.createTempFile(sCacheDir, key, ".tmp");
+            try {
+                Files.write(tmp, bytes);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            ZimbraLog.webclient.debug("unable to write yuiCompress cache file " + file, e);
+            return;
+        }
+        long diskBytes = sDiskBytes.get() < 0 ? -1 : sDiskBytes.addAndGet(bytes.length);
+        if (diskBytes < 0 || diskBytes > sMaxDiskBytes) {
+            trimDisk();
+        }
+    }
+
+    private static class CacheFile {
+        final Path mPath;
+        final long mLastUsed;
+        final long mSize;
+
+        CacheFile(Path path, long lastUsed, long size) {
+            mPath = path;
+            mLastUsed = lastUsed;
+            mSize = size;
+        }
+    }
+
+    /**
+     * Deletes the files unused for longer than the maximum age, then the least
+     * recently used ones until the directory is back under 90% of its size
+     * limit. Only one thread trims at a time; the others skip it.
+     */
+    private static void trimDisk() {
+        if (!sTrimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<CacheFile> files = new ArrayList<CacheFile>();
+            long total = 0;
+            long expired = System.currentTimeMillis() - sMaxDiskAge;
+            try (DirectoryStream<Path> dir = Files.newDirectoryStream(sCacheDir, "*" + FILE_SUFFIX)) {
+                for (Path file : dir) {
+                    try {
+                        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                        if (attrs.lastModifiedTime().toMillis() < expired) {
+                            Files.deleteIfExists(file);
+                            continue;
+                        }
+                        files.add(new CacheFile(file, attrs.lastModifiedTime().toMillis(), attrs.size()));
+                        total += attrs.size();
+                    } catch (IOException e) {
+                        ZimbraLog.webclient.debug("unable to trim yuiCompress cache file " + file, e);
+                    }
+                }
+            }
+            if (total > sMaxDiskBytes) {
+                Collections.sort(files, new Comparator<CacheFile>() {
+                    public int compare(CacheFile f1, CacheFile f2) {
+                        return f1.mLastUsed < f2.mLastUsed ? -1 : f1.mLastUsed > f2.mLastUsed ? 1 : 0;
+                    }
+                });
+                long target = sMaxDiskBytes / 10 * 9;
+                for (Iterator<CacheFile> it = files.iterator(); it.hasNext() && total > target; ) {
+                    CacheFile file = it.next();
+                    try {
+                        Files.deleteIfExists(file.mPath);
+                        total -= file.mSize;
+                    } catch (IOException e) {
+                        ZimbraLog.webclient.debug("unable to trim yuiCompress cache file " + file.mPath, e);
+                    }
+                }
+            }
+            sDiskBytes.set(total);
+        } catch (IOException e) {
+            ZimbraLog.webclient.warn("unable to trim yuiCompress cache directory " + sCacheDir, e);
+        } finally {
+            sTrimming.set(false);
+        }
+    }
+
+    private static long getLong(Context envCtx, String name, long defaultValue) {
+        try {
+            Object value = envCtx.lookup(name);
+            return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+        } catch (NamingException e) {
+            return defaultValue;
+        } catch (NumberFormatException e) {
+            ZimbraLog.webclient.warn("invalid value for %s, using %d", name, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static String getString(Context envCtx, String name) {
+        try {
+            Object value = envCtx.lookup(name);
+            return value != null ? value.toString() : null;
+        } catch (NamingException e) {
+            return null;
+        }
+    }
+}
@@ -19,8 +19,14 @@ package com.zimbra.cs.taglib.bean;
 import com.zimbra.client.ZAppointmentHit;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Calendar;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
 
 public class ZApptDayLayoutBean {
 
@@ -59,6 +65,18 @@ public class ZApptDayLayoutBean {
     }
 
     public ZApptDayLayoutBean(List<ZAppointmentHit> appts, Calendar startCal, int day, int numDays, String folderId, long msecsIncr, boolean isShowDeclined) {
+        this(startCal, day, numDays, folderId);
+        for (ZAppointmentHit appt : appts) {
+            if (appt.isInRange(mStartTime, mEndTime)
+                    && (mFolderId == null || mFolderId.equals(appt.getFolderId()))
+                    && isVisible(appt, isShowDeclined)) {
+                add(appt);
+            }
+        }
+        computeOverlapInfo(msecsIncr);
+    }
+
+    private ZApptDayLayoutBean(Calendar startCal, int day, int numDays, String folderId) {
         mAllday = new ArrayList<ZAppointmentHit>();
         mAppts = new ArrayList<ZAppointmentHit>();
         mStartTime = startCal.getTimeInMillis();
@@ -68,33 +86,190 @@ public class ZApptDayLayoutBean {
         mDay = day;
         mNumDays = numDays;
         mFolderId = folderId;
+    }
 
-        for (ZAppointmentHit appt : appts) {
-            if (appt.isInRange(mStartTime, mEndTime)
-                    && (mFolderId == null || mFolderId.equals(appt.getFolderId()))
-                    && (appt.getParticipantStatus() == null || (appt.getParticipantStatus() != null
-                                                                && ((!appt.getParticipantStatus().equals(PSTATUS_DECLINED))
-                                                                    || (appt.getParticipantStatus().equals(PSTATUS_DECLINED) && isShowDeclined))))) {
-                if (appt.isAllDay())
-                    mAllday.add(appt);
-                else {
-                    mAppts.add(appt);
-                    // keep track of earliest and latest
-                    if ((mEarliestAppt == null || appt.getStartTime() < mEarliestAppt.getStartTime()))
-                        mEarliestAppt = appt;
-                    if ((mLatestAppt == null || appt.getEndTime() > mLatestAppt.getEndTime()))
-                        mLatestAppt = appt;
+    /**
+     * Lays out the appointments for <code>numDays</code> consecutive days starting at
+     * <code>startCal</code>, or, in schedule mode, for each of the given folders on the day
+     * starting at <code>startCal</code>.
+     * <p>
+     * Gives the same result as creating one bean per day or folder, but the appointments are
+     * bucketed by day in a single pass instead of every bean scanning the whole list, and columns
+     * are packed with a sweep line (see {@link #computeOverlapInfo}).
+     *
+     * @param folderIds the folders to lay out in schedule mode, or null
+     */
+    public static List<ZApptDayLayoutBean> layout(List<ZAppointmentHit> appts, Calendar startCal, int numDays,
+            String[] folderIds, long msecsIncr, boolean isShowDeclined) {
+        return layout(appts, startCal, numDays, folderIds, msecsIncr, isShowDeclined, false);
+    }
+
+    /**
+     * @param parallel whether to pack the columns of the days concurrently
+     *                 on the {@link CalendarLayoutPool}
+     * @see #layout(List, Calendar, int, String[], long, boolean)
+     */
+    public static List<ZApptDayLayoutBean> layout(List<ZAppointmentHit> appts, Calendar startCal, int numDays,
+            String[] folderIds, final long msecsIncr, boolean isShowDeclined, boolean parallel) {
+        List<ZApptDayLayoutBean> days = new ArrayList<ZApptDayLayoutBean>(numDays);
+        Calendar cal = (Calendar) startCal.clone();
+        if (folderIds != null) {
+            Map<String, List<ZApptDayLayoutBean>> byFolder = new HashMap<String, List<ZApptDayLayoutBean>>();
+            for (int i = 0; i < folderIds.length; i++) {
+                ZApptDayLayoutBean day = new ZApptDayLayoutBean(cal, i, folderIds.length, folderIds[i]);
+                days.add(day);
+                List<ZApptDayLayoutBean> folderDays = byFolder.get(folderIds[i]);
+                if (folderDays == null) {
+                    folderDays = new ArrayList<ZApptDayLayoutBean>(1);
+                    byFolder.put(folderIds[i], folderDays);
+                }
+                folderDays.add(day);
+            }
+            if (!days.isEmpty()) {
+                long start = days.get(0).mStartTime;
+                long end = days.get(0).mEndTime;
+                for (ZAppointmentHit appt : appts) {
+                    List<ZApptDayLayoutBean> folderDays = byFolder.get(appt.getFolderId());
+                    if (folderDays != null && isVisible(appt, isShowDeclined) && appt.isInRange(start, end)) {
+                        for (ZApptDayLayoutBean day : folderDays) {
+                            day.add(appt);
+                        }
+                    }
+                }
+            }
+        } else {
+            long[] starts = new long[numDays];
+            for (int i = 0; i < numDays; i++) {
+                ZApptDayLayoutBean day = new ZApptDayLayoutBean(cal, i, numDays, null);
+                days.add(day);
+                starts[i] = day.mStartTime;
+                BeanUtils.getNextDay(cal);
+            }
+            for (ZAppointmentHit appt : appts) {
+                if (numDays == 0 || !isVisible(appt, isShowDeclined)) {
+                    continue;
+                }
+                // start at the day before the one the appointment starts on, in case the
+                // appointment starts right at midnight, and stop after the day it ends on
+                int i = Arrays.binarySearch(starts, appt.getStartTime());
+                i = i >= 0 ? i - 1 : -i - 3;
+                for (i = Math.max(i, 0); i < numDays && starts[i] <= appt.getEndTime(); i++) {
+                    ZApptDayLayoutBean day = days.get(i);
+                    if (appt.isInRange(day.mStartTime, day.mEndTime)) {
+                        day.add(appt);
+                    }
                 }
             }
         }
-        computeOverlapInfo(msecsIncr);
+        List<Callable<ZApptDayLayoutBean>> tasks = new ArrayList<Callable<ZApptDayLayoutBean>>(days.size());
+        for (final ZApptDayLayoutBean day : days) {
+            tasks.add(new Callable<ZApptDayLayoutBean>() {
+                public ZApptDayLayoutBean call() {
+                    day.computeOverlapInfo(msecsIncr);
+                    return day;
+                }
+            });
+        }
+        return CalendarLayoutPool.invokeAll(tasks, parallel);
+    }
+
+    private static boolean isVisible(ZAppointmentHit appt, boolean isShowDeclined) {
+        return (appt.getParticipantStatus() == null || (appt.getParticipantStatus() != null
+                                                        && ((!appt.getParticipantStatus().equals(PSTATUS_DECLINED))
+                                                            || (appt.getParticipantStatus().equals(PSTATUS_DECLINED) && isShowDeclined))));
+    }
+
+    private void add(ZAppointmentHit appt) {
+        if (appt.isAllDay())
+            mAllday.add(appt);
+        else {
+            mAppts.add(appt);
+            // keep track of earliest and latest
+            if ((mEarliestAppt == null || appt.getStartTime() < mEarliestAppt.getStartTime()))
+                mEarliestAppt = appt;
+            if ((mLatestAppt == null || appt.getEndTime() > mLatestAppt.getEndTime()))
+                mLatestAppt = appt;
+        }
     }
 
     public String getFolderId() {
         return mFolderId;
     }
-    
+
+    /**
+     * Puts each appointment in the first column in which it doesn't overlap any other.
+     * <p>
+     * When the appointments are sorted by start time, as {@link ZApptSummariesBean} returns them,
+     * the last appointment of a column is the one that ends last, so a column is free for the
+     * next appointment once its last appointment no longer overlaps. Busy columns are then kept
+     * in a heap ordered by the end time of their last appointment and free ones in a heap ordered
+     * by index, which gives the same columns as checking every appointment of every column.
+     * <p>
+     * That doesn't hold for appointments that are, or round to, zero length: they don't overlap
+     * an appointment that starts at the same time, so the earliest ending column isn't
+     * necessarily the first one they fit in. With col0 = 9:00-10:30 and col1 = 10:00-11:00, a
+     * zero-length appointment at 10:00 belongs in col1, not in a new column. Days with such
+     * appointments are laid out by checking every column.
+     */
     private void computeOverlapInfo(long msecsIncr) {
+        if (!isSortedByStartTime(mAppts) || hasShortAppts(mAppts, msecsIncr)) {
+            computeOverlapInfoByScan(msecsIncr);
+            return;
+        }
+        mColumns = new ArrayList<List<ZAppointmentHit>>();
+        mColumns.add(new ArrayList<ZAppointmentHit>());
+        PriorityQueue<Integer> free = new PriorityQueue<Integer>();
+        free.add(0);
+        PriorityQueue<Integer> busy = new PriorityQueue<Integer>(11, new Comparator<Integer>() {
+            public int compare(Integer c1, Integer c2) {
+                long e1 = lastAppt(c1).getEndTime();
+                long e2 = lastAppt(c2).getEndTime();
+                return e1 < e2 ? -1 : e1 > e2 ? 1 : c1.compareTo(c2);
+            }
+        });
+        for (ZAppointmentHit appt : mAppts) {
+            while (!busy.isEmpty() && !appt.isOverLapping(lastAppt(busy.peek()), msecsIncr)) {
+                free.add(busy.poll());
+            }
+            Integer col = free.poll();
+            if (col == null) {
+                col = mColumns.size();
+                mColumns.add(new ArrayList<ZAppointmentHit>());
+            }
+            mColumns.get(col).add(appt);
+            busy.add(col);
+        }
+    }
+
+    private ZAppointmentHit lastAppt(int col) {
+        List<ZAppointmentHit> appts = mColumns.get(col);
+        return appts.get(appts.size() - 1);
+    }
+
+    private static boolean isSortedByStartTime(List<ZAppointmentHit> appts) {
+        for (int i = 1; i < appts.size(); i++) {
+            if (appts.get(i).getStartTime() < appts.get(i - 1).getStartTime()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if an appointment is shorter than the layout increment, and so may round to
+     * zero length
+     */
+    private static boolean hasShortAppts(List<ZAppointmentHit> appts, long msecsIncr) {
+        long minDuration = Math.max(msecsIncr, 1);
+        for (ZAppointmentHit appt : appts) {
+            if (appt.getEndTime() - appt.getStartTime() < minDuration) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void computeOverlapInfoByScan(long msecsIncr) {
         mColumns = new ArrayList<List<ZAppointmentHit>>();
         mColumns.add(new ArrayList<ZAppointmentHit>());
         for (ZAppointmentHit appt : mAppts) {
@@ -27,8 +27,18 @@ public class ZApptSummariesBean {
     private List<ZAppointmentHit> mAppts;
 
     public ZApptSummariesBean(List<ZAppointmentHit> appts) {
+        this(appts, false);
+    }
+
+    /**
+     * @param sorted whether the appointments are already sorted with
+     *               {@link ZAppointmentHit.SortByTimeDurationFolder}
+     */
+    public ZApptSummariesBean(List<ZAppointmentHit> appts, boolean sorted) {
         mAppts = appts;
-        Collections.sort(mAppts, new ZAppointmentHit.SortByTimeDurationFolder());
+        if (!sorted) {
+            Collections.sort(mAppts, new ZAppointmentHit.SortByTimeDurationFolder());
+        }
     }
 
     public int getSize() { return mAppts.size(); }
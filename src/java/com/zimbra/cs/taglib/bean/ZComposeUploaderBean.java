@@ -25,17 +25,23 @@ import com.zimbra.common.util.StringUtil;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.service.FileUploadServlet;
 import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemHeadersSupport;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadBase;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.disk.*;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.jsp.JspTagException;
 import javax.servlet.jsp.PageContext;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -43,6 +49,9 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.Arrays;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class ZComposeUploaderBean {
 
@@ -178,6 +187,11 @@ public class ZComposeUploaderBean {
     public static final String F_limitByFileUploadMaxSize = "lbfums";
     
     private static final long DEFAULT_MAX_SIZE = 10 * 1024 * 1024;
+    private static final long MAX_SIZE_TTL = 60 * 1000;
+
+    private static final DiskFileItemFactory sItemFactory = new DiskFileItemFactory(32 * 1024, new File(getTempDirectory()));
+    private static final Cache<Boolean, Long> sMaxSizes = CacheBuilder.newBuilder()
+            .expireAfterWrite(MAX_SIZE_TTL, TimeUnit.MILLISECONDS).build();
 
     private boolean mIsUpload;
     private boolean mIsLimitExceeded = false;
@@ -188,6 +202,7 @@ public class ZComposeUploaderBean {
     private String mPendingBcc;
     private String mPendingAttendees;
     private String mPendingResources;
+    private StringBuilder mAddTo, mAddCc, mAddBcc, mAddAttendees, mAddResources;
 
     private Map<String,List<String>> mParamValues;
     private HashMap<String, String> mOrigRepeatParams;
@@ -206,38 +221,57 @@ public class ZComposeUploaderBean {
             if (mIsUpload) {
                 mParamValues = new HashMap<String, List<String>>();
                 mOrigRepeatParams = new HashMap<String, String>();
-                mItems = upload.parseRequest(req);
-                mComposeBean = getComposeBean(pageContext, mItems, mailbox);
+                mItems = new ArrayList<FileItem>();
+                ZMessageComposeBean compose = new ZMessageComposeBean(pageContext);
+                try {
+                    readParts(upload.getItemIterator(req), compose);
+                } catch (FileUploadBase.FileUploadIOException e) {
+                    // size limits are reported from inside the part streams
+                    throw (FileUploadException) e.getCause();
+                } catch (IOException e) {
+                    throw new FileUploadException(e.getMessage(), e);
+                }
+                mComposeBean = getComposeBean(pageContext, compose, mailbox);
             }
         } catch (FileUploadBase.SizeLimitExceededException e) {
             // at least one file was over max allowed size
+            deleteItems();
             mIsLimitExceeded = true;
-            mComposeBean = getComposeBean(pageContext, null, mailbox);
+            mParamValues = new HashMap<String, List<String>>();
+            mOrigRepeatParams = new HashMap<String, String>();
+            mPendingTo = mPendingCc = mPendingBcc = mPendingAttendees = mPendingResources = null;
+            mAddTo = mAddCc = mAddBcc = mAddAttendees = mAddResources = null;
+            mComposeBean = getComposeBean(pageContext, new ZMessageComposeBean(pageContext), mailbox);
 //          throw new JspTagException(ZTagLibException.UPLOAD_SIZE_LIMIT_EXCEEDED("size limit exceeded", e));
         } catch (FileUploadBase.InvalidContentTypeException e) {
             // at least one file was of a type not allowed
+            deleteItems();
             throw new JspTagException(ZTagLibException.UPLOAD_FAILED(e.getMessage(), e));
         } catch (FileUploadException e) {
             // parse of request failed for some other reason
+            deleteItems();
             throw new JspTagException(ZTagLibException.UPLOAD_FAILED(e.getMessage(), e));
         }
     }
 
-    private ZMessageComposeBean getComposeBean(PageContext pageContext, List<FileItem> items, ZMailbox mailbox) throws ServiceException {
-        ZMessageComposeBean compose = new ZMessageComposeBean(pageContext);
-        StringBuilder addTo = null, addCc = null, addBcc = null, addAttendees = null, addResources = null;
-
-        if (items != null) {
-        for (FileItem item : items) {
+    /**
+     * Reads the request parts as they arrive. Form fields are applied directly
+     * from the part streams; only attachments are spooled, and any other file
+     * parts are skipped without being written out. The size limit is enforced
+     * while reading, so an oversized request is rejected as soon as the limit
+     * is crossed rather than after the whole body has been stored.
+     */
+    private void readParts(FileItemIterator items, ZMessageComposeBean compose) throws FileUploadException, IOException {
+        while (items.hasNext()) {
+            FileItemStream item = items.next();
             if (!item.isFormField()) {
                 // deal with attachment uploads later
                 if (item.getFieldName().equals(F_fileUpload) && item.getName() != null && item.getName().length() > 0) {
-                    compose.addFileItem(item);
+                    compose.addFileItem(spool(item));
                 }
             } else {
                 String name = item.getFieldName();
-                String value;
-                try { value = item.getString("utf-8"); } catch (UnsupportedEncodingException e) { value = item.getString();}
+                String value = Streams.asString(item.openStream(), "utf-8");
                 if (name.equals(F_messageAttachment)) {
                     int i = value.indexOf(':');
                     String id = i == -1 ? value : value.substring(0, i);
@@ -262,25 +296,15 @@ public class ZComposeUploaderBean {
                 } else if (name.equals(F_uploadedAttachment)) {
                     compose.setUploadedAttachment(value);
                 } else if (name.equals(F_addTo)) {
-                    if (addTo == null) addTo = new StringBuilder();
-                    if (addTo.length() > 0) addTo.append(", ");
-                    addTo.append(value);
+                    mAddTo = appendValue(mAddTo, value);
                 } else if (name.equals(F_addCc)) {
-                    if (addCc == null) addCc = new StringBuilder();
-                    if (addCc.length() > 0) addCc.append(", ");
-                    addCc.append(value);
+                    mAddCc = appendValue(mAddCc, value);
                 } else if (name.equals(F_addBcc)) {
-                    if (addBcc == null) addBcc = new StringBuilder();
-                    if (addBcc.length() > 0) addBcc.append(", ");
-                    addBcc.append(value);
+                    mAddBcc = appendValue(mAddBcc, value);
                 } else if (name.equals(F_addAttendees)) {
-                    if (addAttendees == null) addAttendees = new StringBuilder();
-                    if (addAttendees.length() > 0) addAttendees.append(", ");
-                    addAttendees.append(value);
+                    mAddAttendees = appendValue(mAddAttendees, value);
                 } else if (name.equals(F_addResources)) {
-                    if (addResources == null) addResources = new StringBuilder();
-                    if (addResources.length() > 0) addResources.append(", ");
-                    addResources.append(value);
+                    mAddResources = appendValue(mAddResources, value);
                 } else if (name.equals(F_pendingTo)) {
                     mPendingTo = value;
                 } else if (name.equals(F_pendingCc)) {
@@ -308,7 +332,17 @@ public class ZComposeUploaderBean {
             }
 
         }
-        }
+    }
+
+    private static StringBuilder appendValue(StringBuilder sb, String value) {
+        if (sb == null) sb = new StringBuilder();
+        if (sb.length() > 0) sb.append(", ");
+        return sb.append(value);
+    }
+
+    private ZMessageComposeBean getComposeBean(PageContext pageContext, ZMessageComposeBean compose, ZMailbox mailbox) throws ServiceException {
+        StringBuilder addTo = mAddTo, addCc = mAddCc, addBcc = mAddBcc, addAttendees = mAddAttendees, addResources = mAddResources;
+
         if (getIsRepeatCancel()) {
             // override repeat* attrs with any orig_repeat* attrs
             for (Entry<String,String> entry : mOrigRepeatParams.entrySet()) {
@@ -460,10 +494,33 @@ public class ZComposeUploaderBean {
         return newValue;
     }
 
+    /**
+     * Returns the attachments spooled from the request.
+     */
     public List<FileItem> getItems() {
         return mItems;
     }
 
+    private FileItem spool(FileItemStream stream) throws IOException {
+        FileItem item = sItemFactory.createItem(stream.getFieldName(), stream.getContentType(),
+                stream.isFormField(), stream.getName());
+        mItems.add(item);
+        if (item instanceof FileItemHeadersSupport) {
+            ((FileItemHeadersSupport) item).setHeaders(stream.getHeaders());
+        }
+        Streams.copy(stream.openStream(), item.getOutputStream(), true);
+        return item;
+    }
+
+    private void deleteItems() {
+        if (mItems != null) {
+            for (FileItem item : mItems) {
+                item.delete();
+            }
+            mItems.clear();
+        }
+    }
+
     public boolean hasParam(String name) { return mParamValues.get(name) != null; }
 
     public long getParamLong(String name, long defaultValue) {
@@ -659,36 +716,52 @@ public class ZComposeUploaderBean {
     }
 
     private static ServletFileUpload getUploader(boolean limitByFileUploadMaxSize) {
-        DiskFileItemFactory dfif = new DiskFileItemFactory();
-        ServletFileUpload upload;
-        
-        dfif.setSizeThreshold(32 * 1024);
-        dfif.setRepository(new File(getTempDirectory()));
-        upload = new ServletFileUpload(dfif);
+        ServletFileUpload upload = new ServletFileUpload(sItemFactory);
+        upload.setSizeMax(getMaxSize(limitByFileUploadMaxSize));
+        return upload;
+    }
+
+    /**
+     * Returns the request size limit, -1 meaning no limit. The limits are cached
+     * for {@link #MAX_SIZE_TTL} ms; {@link #flushMaxSizes()} drops them right away.
+     */
+    private static long getMaxSize(final boolean limitByFileUploadMaxSize) {
         try {
-            long maxSize;
-            if(limitByFileUploadMaxSize) {
-                maxSize = Provisioning.getInstance().getLocalServer().getLongAttr(
-                                Provisioning.A_zimbraFileUploadMaxSize, DEFAULT_MAX_SIZE);
-            } else {
-                maxSize = Provisioning.getInstance().getConfig().getLongAttr(
-                                Provisioning.A_zimbraMtaMaxMessageSize, DEFAULT_MAX_SIZE);
-                if (maxSize == 0) {
-                    /* zimbraMtaMaxMessageSize=0 means "no limit".
-                     * ServletFileUpload "sizeMax" uses "-1" to mean "no limit"
-                     */
-                    maxSize = -1;
+            return sMaxSizes.get(limitByFileUploadMaxSize, new Callable<Long>() {
+                public Long call() throws ServiceException {
+                    long maxSize;
+                    if (limitByFileUploadMaxSize) {
+                        maxSize = Provisioning.getInstance().getLocalServer().getLongAttr(
+                                        Provisioning.A_zimbraFileUploadMaxSize, DEFAULT_MAX_SIZE);
+                    } else {
+                        maxSize = Provisioning.getInstance().getConfig().getLongAttr(
+                                        Provisioning.A_zimbraMtaMaxMessageSize, DEFAULT_MAX_SIZE);
+                        if (maxSize == 0) {
+                            /* zimbraMtaMaxMessageSize=0 means "no limit".
+                             * ServletFileUpload "sizeMax" uses "-1" to mean "no limit"
+                             */
+                            maxSize = -1;
+                        }
+                    }
+                    return maxSize;
                 }
-            }
-            upload.setSizeMax(maxSize);
-        } catch (ServiceException e) {
+            });
+        } catch (ExecutionException e) {
             if (ZimbraLog.webclient.isDebugEnabled()) {
                 ZimbraLog.webclient.debug("unable to read " + ((limitByFileUploadMaxSize) ?
                         Provisioning.A_zimbraFileUploadMaxSize : Provisioning.A_zimbraMtaMaxMessageSize) +
-                        "attribute" + e.getMessage());
+                        "attribute" + e.getCause().getMessage());
             }
+            return -1;
         }
-        return upload;
+    }
+
+    /**
+     * Drops the cached upload size limits, e.g. after the server or global
+     * config has been modified.
+     */
+    public static void flushMaxSizes() {
+        sMaxSizes.invalidateAll();
     }
 
     private static String getTempDirectory() {
@@ -17,7 +17,10 @@
 package com.zimbra.cs.taglib.bean;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -35,10 +38,12 @@ import org.apache.commons.fileupload.servlet.ServletFileUpload;
 
 import com.zimbra.client.ZMailbox;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
 
 public class ZFileUploaderBean {
 
     private static final long DEFAULT_MAX_SIZE = 100 * 1024 * 1024;
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
 
     private boolean mIsUpload;
     private List<FileItem> mFiles;
@@ -174,13 +179,8 @@ public class ZFileUploaderBean {
 
     public String getUploadId(ZMailbox mailbox) throws ServiceException {
         if (!mFiles.isEmpty()) {
-            Map<String,byte[]> attachments = new HashMap<String,byte[]>();
-            int i=0;
-            for (FileItem item : mFiles) {
-                attachments.put(item.getName(), item.get());
-            }
             try {
-                return mailbox.uploadAttachments(attachments, 1000*60); //TODO get timeout from config
+                return uploadFileItems(mailbox, mFiles, 1000*60); //TODO get timeout from config
             } finally {
                 for (FileItem item : mFiles) {
                     try { item.delete(); } catch (Exception e) { /* TODO: need logging infra */ }
@@ -189,4 +189,42 @@ public class ZFileUploaderBean {
         }
         return null;
     }
+
+    /**
+     * Uploads the items to the mailbox one at a time, streaming each one from
+     * its temp file (or from memory, for small items) so that attachments are
+     * never read into the heap as a whole.
+     *
+     * @return the comma-separated upload ids, or null if there were no items
+     */
+    public static String uploadFileItems(ZMailbox mailbox, List<FileItem> items, int msTimeout)
+    throws ServiceException {
+        StringBuilder uploadIds = null;
+        for (FileItem item : items) {
+            String name = item.getName();
+            String contentType = item.getContentType();
+            if (contentType == null) {
+                contentType = URLConnection.getFileNameMap().getContentTypeFor(name);
+            }
+            if (contentType == null) {
+                contentType = DEFAULT_CONTENT_TYPE;
+            }
+            String uploadId;
+            InputStream in = null;
+            try {
+                in = item.getInputStream();
+                uploadId = mailbox.uploadContentAsStream(name, in, contentType, item.getSize(), msTimeout);
+            } catch (IOException e) {
+                throw ServiceException.FAILURE("unable to read uploaded file " + name, e);
+            } finally {
+                ByteUtil.closeStream(in);
+            }
+            if (uploadIds == null) {
+                uploadIds = new StringBuilder(uploadId);
+            } else {
+                uploadIds.append(',').append(uploadId);
+            }
+        }
+        return uploadIds != null ? uploadIds.toString() : null;
+    }
 }
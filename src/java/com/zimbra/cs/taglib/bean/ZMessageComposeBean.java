@@ -20,7 +20,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.ParsePosition;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
@@ -40,6 +39,7 @@ import org.apache.commons.fileupload.FileItem;
 import com.zimbra.common.calendar.ParsedDuration;
 import com.zimbra.common.calendar.TZIDMapper;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.taglib.tag.i18n.DateFormatCache;
 import com.zimbra.cs.taglib.tag.i18n.I18nUtil;
 import com.zimbra.client.ZAlarm;
 import com.zimbra.client.ZDateTime;
@@ -963,8 +963,7 @@ public class ZMessageComposeBean {
         setRepeatEndCount((int)(repeat.getCount() > 0 ? repeat.getCount() : 1));
         
         Date endDate = repeat.getUntilDate() != null ? repeat.getUntilDate().getDate() : date;
-        DateFormat df = new SimpleDateFormat(I18nUtil.getLocalizedMessage(pc, "CAL_APPT_EDIT_DATE_FORMAT"));
-        df.setTimeZone(mailbox.getPrefs().getTimeZone());
+        DateFormat df = DateFormatCache.getPatternInstance(I18nUtil.getLocalizedMessage(pc, "CAL_APPT_EDIT_DATE_FORMAT"), null, mailbox.getPrefs().getTimeZone());
         setRepeatEndDate(df.format(endDate));
         setRepeatEndType(repeat.getEnd().name());
 
@@ -1003,8 +1002,7 @@ public class ZMessageComposeBean {
             setTaskStatus(ZInvite.ZStatus.NEED.name());
         }
         Calendar calendar = options.getDate() != null ? options.getDate() : BeanUtils.getCalendar(System.currentTimeMillis(), mailbox.getPrefs().getTimeZone());
-        DateFormat df = new SimpleDateFormat(I18nUtil.getLocalizedMessage(pc, "CAL_APPT_EDIT_DATE_FORMAT"));
-        df.setTimeZone(mailbox.getPrefs().getTimeZone());
+        DateFormat df = DateFormatCache.getPatternInstance(I18nUtil.getLocalizedMessage(pc, "CAL_APPT_EDIT_DATE_FORMAT"), null, mailbox.getPrefs().getTimeZone());
         String dateStr = df.format(calendar.getTime());
         int hour = calendar.get(Calendar.HOUR_OF_DAY);
         setStartDate(paramInit(req, ZComposeUploaderBean.F_startDate, dateStr));
@@ -1058,7 +1056,7 @@ public class ZMessageComposeBean {
 
         setClassProp(appt.getClassProp().name());
 
-        DateFormat df = new SimpleDateFormat(I18nUtil.getLocalizedMessage(pc, "CAL_APPT_EDIT_DATE_FORMAT"));
+        DateFormat df = DateFormatCache.getPatternInstance(I18nUtil.getLocalizedMessage(pc, "CAL_APPT_EDIT_DATE_FORMAT"), null, null);
 
         setRecurrenceIdZ(appt.getRecurrenceIdZ());
 
@@ -1643,7 +1641,7 @@ public class ZMessageComposeBean {
     }
 
     private String getICalTime(String dateStr, long hour, long minute) throws ZTagLibException {
-            DateFormat icalFmt = new SimpleDateFormat(getAllDay() ? "yyyyMMdd" : "yyyyMMdd'T'HHmmss");
+            DateFormat icalFmt = DateFormatCache.getPatternInstance(getAllDay() ? "yyyyMMdd" : "yyyyMMdd'T'HHmmss", null, null);
             return icalFmt.format(getCalendar(dateStr, hour, minute).getTime());
     }
 
@@ -1654,7 +1652,7 @@ public class ZMessageComposeBean {
             if (dateStr == null)
                 throw ZTagLibException.INVALID_APPT_DATE("date field is empty", null);
 
-            DateFormat df = new SimpleDateFormat(mDateFormat);
+            DateFormat df = DateFormatCache.getPatternInstance(mDateFormat, null, null);
             df.setLenient(false);
             ParsePosition pos = new ParsePosition(0);
             Date date = df.parse(dateStr, pos);
@@ -2030,26 +2028,16 @@ da body
             for (FileItem item : mFileItems) {
                 if (item.getSize() > 0) num++;
             }
-            Map<String,byte[]> attachments = new HashMap<String,byte[]>();
-            int i=0;
-            int j=0;
+            List<FileItem> attachments = new ArrayList<FileItem>(num);
             for (FileItem item : mFileItems) {
                 if (item.getSize() > 0 ){
-                    String name = item.getName();
-                    try{
-                        name = new String(item.getName().getBytes("UTF-8"),"UTF-8");
-                    }catch(Exception e){
-                        System.out.println("Failed to get UTF8 name for "+ name);  /* TODO: need logging infra */
-                        e.printStackTrace();
-                        name = item.getName();
-                    }
-                    attachments.put(name, item.get());
+                    attachments.add(item);
                 }
             }
 
             try {
                 if(attachments.size() > 0) {
-                    attachmentUploadId = mailbox.uploadAttachments(attachments, 1000 * 60);  //TODO get timeout from config
+                    attachmentUploadId = ZFileUploaderBean.uploadFileItems(mailbox, attachments, 1000 * 60);  //TODO get timeout from config
                 }
             } finally {
                 for (FileItem item : mFileItems) {
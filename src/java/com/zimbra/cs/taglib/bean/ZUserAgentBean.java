@@ -20,12 +20,26 @@ import java.util.StringTokenizer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import eu.bitwalker.useragentutils.UserAgent;
 import eu.bitwalker.useragentutils.OperatingSystem;
 import eu.bitwalker.useragentutils.DeviceType;
 
 public class ZUserAgentBean {
 
+    /** Parsed agents, shared application-wide; a bean is never modified after parsing. */
+    private static final Cache<String, ZUserAgentBean> sParsedAgents =
+            CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    /** Longer user agent strings are parsed but not cached. */
+    private static final int MAX_CACHED_LENGTH = 1024;
+
+    private static final Pattern MOZILLA = Pattern.compile("\\s*mozilla");
+    private static final Pattern STARTS_WITH_DIGIT = Pattern.compile("^(\\d).*");
+    private static final Pattern NON_VERSION = Pattern.compile("[^0-9\\.].*");
+
     private String mUserAgent;
 
     // state
@@ -69,6 +83,22 @@ public class ZUserAgentBean {
         if (mUserAgent != null) parseUserAgent(userAgent);
     }
 
+    /**
+     * Returns the parsed bean for the given user agent, parsing it only the
+     * first time it is seen.
+     */
+    public static ZUserAgentBean getInstance(String userAgent) {
+        if (userAgent == null || userAgent.length() > MAX_CACHED_LENGTH) {
+            return new ZUserAgentBean(userAgent);
+        }
+        ZUserAgentBean ua = sParsedAgents.getIfPresent(userAgent);
+        if (ua == null) {
+            ua = new ZUserAgentBean(userAgent);
+            sParsedAgents.put(userAgent, ua);
+        }
+        return ua;
+    }
+
     public String getUserAgent() { return mUserAgent; }
     
     private void parseUserAgent(String agent) {
@@ -88,8 +118,7 @@ public class ZUserAgentBean {
         boolean isTokenOS = false;
         if (agtArr.hasMoreTokens()) {
             String token = agtArr.nextToken();
-            Pattern pattern = Pattern.compile("\\s*mozilla");
-            Matcher mozilla = pattern.matcher(token);
+            Matcher mozilla = MOZILLA.matcher(token);
             if (mozilla.find()){
                 index = mozilla.start();
                 beginsWithMozilla = true;
@@ -171,12 +200,12 @@ public class ZUserAgentBean {
                     isTablet = true;
                 } else if (token.equals("os") && (isIPhone || isIPod || isTouchiPad)) {
                     isTokenOS = true;
-                } else if (isTokenAndroid && token.matches("^(\\d).*")) {
+                } else if (isTokenAndroid && STARTS_WITH_DIGIT.matcher(token).matches()) {
                     androidVersion = new Version(token);
                     isTokenAndroid = false;
-                } else if (isTokenOS && token.matches("^(\\d).*")) {
+                } else if (isTokenOS && STARTS_WITH_DIGIT.matcher(token).matches()) {
                     //iOS version is separated using "_", replace it with "."
-                    token = token.replaceAll("_", ".");
+                    token = token.replace('_', '.');
                     iOsVersion = new Version(token);
                     isTokenOS = false;
                 } else if (isOsWindows && token.equals("nt")) {
@@ -340,7 +369,7 @@ public class ZUserAgentBean {
             if (v == null || v.length() == 0) return;
 
             // so parseInt doesn't choke on something like 1.9pre
-            v = v.replaceAll("[^0-9\\.].*", "");
+            v = NON_VERSION.matcher(v).replaceAll("");
             
             int d1 = v.indexOf('.');
             if (d1 != -1) {
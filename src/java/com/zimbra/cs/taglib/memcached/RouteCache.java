@@ -17,16 +17,42 @@
 
 package com.zimbra.cs.taglib.memcached;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.util.memcached.MemcachedMap;
 import com.zimbra.common.util.memcached.MemcachedSerializer;
 import com.zimbra.common.util.memcached.ZimbraMemcachedClient;
 import com.zimbra.cs.taglib.ZJspSession;
 
+/**
+ * Account route cache. Routes are looked up in a bounded in-process near cache first and
+ * fall back to memcached; routes found in memcached are copied into the near cache.
+ * Failed nginx lookups can be remembered for a short time so that a broken account does
+ * not hit the lookup handlers on every request.
+ */
 public class RouteCache {
 
+    private static final long DEFAULT_NEAR_CACHE_SIZE = 10000;
+    private static final long DEFAULT_NEAR_CACHE_TTL = 60;
+    private static final long DEFAULT_NEGATIVE_CACHE_TTL = 10;
+
     private static RouteCache sTheInstance = new RouteCache();
     private MemcachedMap<RouteCacheKey, String> mMemcachedLookup;
+    private final String mProtocol = ZJspSession.isProtocolModeHttps() ?  "https" : "http";
+    private final Cache<String, String> mNearCache;
+    private final Cache<String, Boolean> mFailedLookups;
+    private final AtomicLong mNearHits = new AtomicLong();
+    private final AtomicLong mMemcachedHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
 
     public static RouteCache getInstance() { return sTheInstance; }
 
@@ -34,6 +60,33 @@ public class RouteCache {
         ZimbraMemcachedClient memcachedClient = MemcachedConnector.getClient();
         RouteSerializer serializer = new RouteSerializer();
         mMemcachedLookup = new MemcachedMap<RouteCacheKey, String>(memcachedClient, serializer, false);
+
+        long size = DEFAULT_NEAR_CACHE_SIZE;
+        long ttl = DEFAULT_NEAR_CACHE_TTL;
+        long negativeTtl = DEFAULT_NEGATIVE_CACHE_TTL;
+        try {
+            Context envCtx = (Context) new InitialContext().lookup("java:comp/env");
+            size = getLong(envCtx, "routeCacheSize", size);
+            ttl = getLong(envCtx, "routeCacheTtl", ttl);
+            negativeTtl = getLong(envCtx, "routeCacheNegativeTtl", negativeTtl);
+        } catch (NamingException ne) {
+            ZimbraLog.misc.debug("no naming context, using default route cache settings");
+        }
+        mNearCache = CacheBuilder.newBuilder().maximumSize(size).expireAfterWrite(ttl, TimeUnit.SECONDS).build();
+        mFailedLookups = CacheBuilder.newBuilder().maximumSize(size)
+                .expireAfterWrite(negativeTtl, TimeUnit.SECONDS).build();
+    }
+
+    private static long getLong(Context envCtx, String name, long defaultValue) {
+        try {
+            Object value = envCtx.lookup(name);
+            return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+        } catch (NamingException e) {
+            return defaultValue;
+        } catch (NumberFormatException e) {
+            ZimbraLog.misc.warn("invalid value for %s, using %d", name, defaultValue);
+            return defaultValue;
+        }
     }
 
     private static class RouteSerializer implements MemcachedSerializer<String> {
@@ -49,12 +102,54 @@ public class RouteCache {
     }
 
     public String get(String accountId) throws ServiceException {
-        RouteCacheKey key = new RouteCacheKey(ZJspSession.isProtocolModeHttps() ?  "https" : "http", accountId);
-        return mMemcachedLookup.get(key);
+        String route = mNearCache.getIfPresent(accountId);
+        if (route != null) {
+            mNearHits.incrementAndGet();
+            return route;
+        }
+        RouteCacheKey key = new RouteCacheKey(mProtocol, accountId);
+        route = mMemcachedLookup.get(key);
+        if (route != null) {
+            mMemcachedHits.incrementAndGet();
+            mNearCache.put(accountId, route);
+        } else {
+            mMisses.incrementAndGet();
+        }
+        return route;
     }
 
     public void put(String accountId, String route) throws ServiceException {
-        RouteCacheKey key = new RouteCacheKey(ZJspSession.isProtocolModeHttps() ?  "https" : "http", accountId);
+        RouteCacheKey key = new RouteCacheKey(mProtocol, accountId);
         mMemcachedLookup.put(key, route);
+        mNearCache.put(accountId, route);
+        mFailedLookups.invalidate(accountId);
     }
+
+    /**
+     * Drops the route from both tiers, e.g. after the account has been moved.
+     * See {@link ZJspSession#invalidateRoute}.
+     */
+    public void remove(String accountId) throws ServiceException {
+        mNearCache.invalidate(accountId);
+        mMemcachedLookup.remove(new RouteCacheKey(mProtocol, accountId));
+    }
+
+    /**
+     * Remembers that the route lookup for the account failed.
+     */
+    public void putFailedLookup(String accountId) {
+        mFailedLookups.put(accountId, Boolean.TRUE);
+    }
+
+    /**
+     * @return true if a route lookup for the account failed within the negative cache TTL
+     */
+    public boolean isFailedLookup(String accountId) {
+        return mFailedLookups.getIfPresent(accountId) != null;
+    }
+
+    public long getNearCacheHits() { return mNearHits.get(); }
+    public long getMemcachedHits() { return mMemcachedHits.get(); }
+    public long getMisses() { return mMisses.get(); }
+    public long getNearCacheSize() { return mNearCache.size(); }
 }
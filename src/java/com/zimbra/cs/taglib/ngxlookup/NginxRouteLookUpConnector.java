@@ -16,18 +16,55 @@
  */
 package com.zimbra.cs.taglib.ngxlookup;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 
 import net.spy.memcached.HashAlgorithm;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.common.util.ngxlookup.NginxAuthServer;
 import com.zimbra.common.util.ngxlookup.ZimbraNginxLookUpClient;
+import com.zimbra.cs.taglib.memcached.RouteCache;
 
 public class NginxRouteLookUpConnector {
     private static ZimbraNginxLookUpClient sTheClient = new ZimbraNginxLookUpClient();
 
+    private static final String AUTH_METHOD_ZIMBRA_ID = "zimbraId";
+    private static final long MIN_BACKOFF = 100;
+
+    /** in-flight lookups, keyed by auth method, protocol and user */
+    private static final ConcurrentMap<String, FutureTask<NginxAuthServer>> sPendingLookups =
+            new ConcurrentHashMap<String, FutureTask<NginxAuthServer>>();
+    /** one client per lookup handler, so that each handler's health is tracked on its own */
+    private static volatile List<LookUpHandler> sHandlers = Collections.emptyList();
+    private static final AtomicInteger sNextHandler = new AtomicInteger();
+    private static volatile long sMaxBackoff = 60000;
+
+    private static final ThreadPoolExecutor sPrefetchExecutor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(1000),
+            new ThreadFactoryBuilder().setNameFormat("RouteLookupPrefetch-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.AbortPolicy());
+    static {
+        sPrefetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
     /**
      * Returns the one and only Nginx Lookup client object.
      * Nginx LookUp Handler Client makes a new connection to a random upstream handler.
@@ -38,6 +75,192 @@ public class NginxRouteLookUpConnector {
         return sTheClient;
     }
 
+    /**
+     * A lookup handler and its consecutive failures. A handler that failed is skipped until its
+     * backoff, doubling with every consecutive failure up to the retry timeout, has passed.
+     */
+    private static class LookUpHandler {
+        private final String mServer;
+        private final ZimbraNginxLookUpClient mClient;
+        private final AtomicInteger mFailures = new AtomicInteger();
+        private volatile long mBackoffUntil = 0;
+
+        LookUpHandler(String server, ZimbraNginxLookUpClient client) {
+            mServer = server;
+            mClient = client;
+        }
+
+        boolean isAvailable(long now) {
+            return now >= mBackoffUntil;
+        }
+
+        void recordSuccess() {
+            mFailures.set(0);
+            mBackoffUntil = 0;
+        }
+
+        long recordFailure() {
+            int failures = mFailures.incrementAndGet();
+            long backoff = Math.min(sMaxBackoff, MIN_BACKOFF << Math.min(failures - 1, 16));
+            mBackoffUntil = System.currentTimeMillis() + backoff;
+            return backoff;
+        }
+    }
+
+    /**
+     * Looks up the route for a user. Concurrent lookups for the same user share one call to the
+     * lookup handlers. A failed call is retried at once on another handler; handlers that failed
+     * recently are skipped, and the lookup fails fast if all of them did.
+     * @return the route, or null if the lookup handlers did not return one
+     * @throws ServiceException
+     */
+    public static NginxAuthServer getRouteforAccount(final String user, final String authMethod,
+            final String authProtocol, final String virtualHost, final String clientIp, final String httpHost)
+    throws ServiceException {
+        String key = authMethod + ";" + authProtocol + ";" + user;
+        FutureTask<NginxAuthServer> task = new FutureTask<NginxAuthServer>(new Callable<NginxAuthServer>() {
+            public NginxAuthServer call() throws ServiceException {
+                return lookup(user, authMethod, authProtocol, virtualHost, clientIp, httpHost);
+            }
+        });
+        FutureTask<NginxAuthServer> pending = sPendingLookups.putIfAbsent(key, task);
+        if (pending == null) {
+            pending = task;
+            try {
+                task.run();
+            } finally {
+                sPendingLookups.remove(key, task);
+            }
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServiceException.FAILURE("interrupted while looking up route for " + user, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
+            }
+            throw ServiceException.FAILURE("unable to look up route for " + user, e.getCause());
+        }
+    }
+
+    /**
+     * Looks up the route for an account by zimbraId and stores it in the route cache.
+     * Failed lookups are recorded in the route cache's negative cache.
+     * @return the route
+     * @throws ServiceException if the lookup failed now or recently
+     */
+    public static String lookupRoute(String accountId, String authProtocol, String virtualHost, String clientIp,
+            String httpHost) throws ServiceException {
+        return lookupRoute(accountId, authProtocol, virtualHost, clientIp, httpHost, true);
+    }
+
+    /**
+     * @param recordFailure whether a failed lookup is recorded in the negative cache
+     * @see #lookupRoute(String, String, String, String, String)
+     */
+    private static String lookupRoute(String accountId, String authProtocol, String virtualHost, String clientIp,
+            String httpHost, boolean recordFailure) throws ServiceException {
+        RouteCache rtCache = RouteCache.getInstance();
+        if (rtCache.isFailedLookup(accountId)) {
+            throw ServiceException.FAILURE("route lookup for " + accountId + " failed recently", null);
+        }
+        NginxAuthServer nginxLookUpServer;
+        try {
+            nginxLookUpServer = getRouteforAccount(accountId, AUTH_METHOD_ZIMBRA_ID, authProtocol, virtualHost,
+                    clientIp, httpHost);
+        } catch (ServiceException e) {
+            if (recordFailure) {
+                rtCache.putFailedLookup(accountId);
+            }
+            throw e;
+        }
+        if (nginxLookUpServer == null) {
+            if (recordFailure) {
+                rtCache.putFailedLookup(accountId);
+            }
+            throw ServiceException.FAILURE("no route found for " + accountId, null);
+        }
+        rtCache.put(nginxLookUpServer.getNginxAuthUser(), nginxLookUpServer.getNginxAuthServer());
+        return nginxLookUpServer.getNginxAuthServer();
+    }
+
+    /**
+     * Warms the route cache for an account in the background. Does nothing if the route is
+     * already cached, all lookup handlers are backing off, or the prefetch queue is full.
+     * A failed prefetch is not recorded in the negative cache, so that the first requests
+     * of the session still look the route up themselves.
+     */
+    public static void prefetchRoute(final String accountId, final String authProtocol, final String virtualHost,
+            final String clientIp, final String httpHost) {
+        List<LookUpHandler> handlers = sHandlers;
+        if (!handlers.isEmpty() && pickHandlers(handlers, 1).isEmpty()) {
+            return;
+        }
+        try {
+            sPrefetchExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (RouteCache.getInstance().get(accountId) == null) {
+                            lookupRoute(accountId, authProtocol, virtualHost, clientIp, httpHost, false);
+                        }
+                    } catch (ServiceException e) {
+                        ZimbraLog.misc.debug("route prefetch for %s failed", accountId, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ZimbraLog.misc.debug("route prefetch queue is full, skipping %s", accountId);
+        }
+    }
+
+    private static NginxAuthServer lookup(String user, String authMethod, String authProtocol,
+            String virtualHost, String clientIp, String httpHost) throws ServiceException {
+        List<LookUpHandler> handlers = sHandlers;
+        if (handlers.isEmpty()) {
+            // no handlers configured, let the shared client report it
+            return sTheClient.getRouteforAccount(user, authMethod, authProtocol, virtualHost, clientIp, httpHost);
+        }
+        List<LookUpHandler> picked = pickHandlers(handlers, 2);
+        if (picked.isEmpty()) {
+            throw ServiceException.FAILURE("all route lookup handlers failed recently, not looking up " + user, null);
+        }
+        for (int i = 0; ; i++) {
+            LookUpHandler handler = picked.get(i);
+            try {
+                NginxAuthServer server = handler.mClient.getRouteforAccount(user, authMethod, authProtocol,
+                        virtualHost, clientIp, httpHost);
+                handler.recordSuccess();
+                return server;
+            } catch (ServiceException e) {
+                long backoff = handler.recordFailure();
+                if (i + 1 >= picked.size()) {
+                    throw e;
+                }
+                ZimbraLog.misc.debug("route lookup for %s failed on %s, skipping it for %dms", user,
+                        handler.mServer, backoff, e);
+            }
+        }
+    }
+
+    /**
+     * Picks up to <code>count</code> distinct handlers that are not backing off, starting at the
+     * next handler in turn.
+     */
+    private static List<LookUpHandler> pickHandlers(List<LookUpHandler> handlers, int count) {
+        List<LookUpHandler> picked = new ArrayList<LookUpHandler>(count);
+        long now = System.currentTimeMillis();
+        int start = sNextHandler.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < handlers.size() && picked.size() < count; i++) {
+            LookUpHandler handler = handlers.get((start + i) % handlers.size());
+            if (handler.isAvailable(now)) {
+                picked.add(handler);
+            }
+        }
+        return picked;
+    }
+
     /**
      * Load all Nginx LookUp attributes from Web.Xml
      * @throws ServiceException
@@ -71,13 +294,26 @@ public class NginxRouteLookUpConnector {
             e.printStackTrace();
         }
         sTheClient.setAttributes(lookUpServers, upstreamMailServers, connectTimeout, retryTimeout);
+        List<LookUpHandler> handlers = new ArrayList<LookUpHandler>();
+        if (lookUpServers != null) {
+            for (String server : lookUpServers) {
+                ZimbraNginxLookUpClient client = new ZimbraNginxLookUpClient();
+                client.setAttributes(new String[] { server }, upstreamMailServers, connectTimeout, retryTimeout);
+                handlers.add(new LookUpHandler(server, client));
+            }
+        }
+        sMaxBackoff = retryTimeout;
+        sHandlers = Collections.unmodifiableList(handlers);
     }
 
     /**
-     * Shutdown the memcached connection.
+     * Stops the prefetch threads and drops the lookup clients. Called when the webapp is undeployed.
      * @throws ServiceException
      */
     public static void shutdown() throws ServiceException {
+        sPrefetchExecutor.shutdownNow();
+        sPendingLookups.clear();
+        sHandlers = Collections.emptyList();
         sTheClient = null;
     }
 }
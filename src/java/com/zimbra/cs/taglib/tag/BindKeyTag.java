@@ -16,8 +16,11 @@
  */
 package com.zimbra.cs.taglib.tag;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.taglib.bean.ZUserAgentBean;
+import com.zimbra.cs.taglib.tag.i18n.BundleCache;
 import com.zimbra.cs.taglib.tag.i18n.I18nUtil;
 import com.zimbra.client.ZMailbox;
 
@@ -28,10 +31,7 @@ import javax.servlet.jsp.JspWriter;
 import javax.servlet.jsp.PageContext;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -59,7 +59,15 @@ public class BindKeyTag extends ZimbraSimpleTag {
      public static final String SPACE = "Space";
      public static final String BACKSLASH = "Backslash";
 
-    private static final String BINDKEY_CACHE = "BindKeyTag.CACHE";
+    /**
+     * Generated JavaScript, shared by all sessions. The key includes
+     * everything the output depends on: key bundle, skin, locale, OS
+     * family, message and binding target.
+     */
+    private static final Cache<String, String> sJavaScriptCache =
+            CacheBuilder.newBuilder().maximumSize(10000).recordStats().build();
+
+    private static final String LINE_SEP = System.getProperty("line.separator");
 
     private static final String A_GOTO_TAG = "gototag";
     private static final String A_TAG = "tag";
@@ -122,7 +130,7 @@ public class BindKeyTag extends ZimbraSimpleTag {
 
         String prop = message + ".keycode";
         if (ua != null) {
-            String os = ua.getIsOsWindows() ? ".win" : ua.getIsOsMac() ? ".mac" : ua.getIsOsLinux() ? ".linux" : null;
+            String os = getOsSuffix(ua);
             if (os != null) {
                 String key = I18nUtil.getLocalizedMessage((PageContext)ctxt, prop + os, mBasename);
                 if (!key.startsWith("???")) return key;
@@ -199,31 +207,57 @@ public class BindKeyTag extends ZimbraSimpleTag {
         return sb.toString();
     }
     
-    private String getJavaScriptForMessage(JspContext ctxt, String message, boolean resolve) throws JspTagException {
-        Map<String,String> cache = (Map<String,String>) ctxt.getAttribute(BINDKEY_CACHE, PageContext.SESSION_SCOPE);
-        if (cache == null) {
-            cache = Collections.synchronizedMap(new HashMap<String,String>());
-            ctxt.setAttribute(BINDKEY_CACHE, cache, PageContext.SESSION_SCOPE);
-        }
+    private static String getOsSuffix(ZUserAgentBean ua) {
+        if (ua == null) return null;
+        return ua.getIsOsWindows() ? ".win" : ua.getIsOsMac() ? ".mac" : ua.getIsOsLinux() ? ".linux" : null;
+    }
 
-        String cacheKey = message+"/"+ ((mFunc != null) ? mFunc : mUrl != null ? mUrl : mId);
-        String js = cache.get(cacheKey);
+    private String getJavaScriptForMessage(JspContext ctxt, String message, boolean resolve) throws JspTagException {
+        String cacheKey = getCacheKey(ctxt, message, resolve);
+        String js = sJavaScriptCache.getIfPresent(cacheKey);
         if (js == null) {
-            //System.out.println("bindKey: cache miss for: "+cacheKey);
             String key = resolve ? resolveMessageKey(ctxt, message) : message;
             if (key.startsWith("???")) {
                 System.err.println("bindKey: unresolved prop: "+message);
                 return null;
             } else {
                 js = getJavaScriptForKey(key);
-                cache.put(cacheKey, js);
+                sJavaScriptCache.put(cacheKey, js);
             }
-        } else {
-            //System.out.println("bindKey: cache hit for: "+cacheKey);
         }
         return js;
     }
 
+    private String getCacheKey(JspContext ctxt, String message, boolean resolve) {
+        StringBuilder key = new StringBuilder();
+        if (resolve) {
+            PageContext pctxt = (PageContext) ctxt;
+            ZUserAgentBean ua = GetUserAgentTag.getUserAgent(ctxt, true);
+            key.append(mBasename).append('|')
+               .append(BundleCache.getSkin(pctxt, mBasename)).append('|')
+               .append(I18nUtil.findLocale(pctxt)).append('|')
+               .append(getOsSuffix(ua)).append('|');
+        }
+        key.append(message).append('|');
+        if (mFunc != null)
+            key.append("f:").append(mFunc);
+        else if (mUrl != null)
+            key.append("u:").append(mUrl);
+        else
+            key.append("i:").append(mId);
+        return key.toString();
+    }
+
+    /** Number of cached bindings. */
+    public static long getCacheSize() {
+        return sJavaScriptCache.size();
+    }
+
+    /** Ratio of bindings served from the cache, or 1.0 if there were no requests yet. */
+    public static double getCacheHitRate() {
+        return sJavaScriptCache.stats().hitRate();
+    }
+
     private String getJavaScriptForKey(String k) throws JspTagException {
         StringBuilder js = new StringBuilder();
         if (k == null) return "";
@@ -234,16 +268,17 @@ public class BindKeyTag extends ZimbraSimpleTag {
             String keys[] = keySeq.trim().split(",");
             if (keys.length == 0)
                 throw new JspTagException("invalid key binding: "+k);
-            StringBuilder sb = new StringBuilder();
+            js.append("bindKey('");
             for (String key : keys) {
-                sb.append(':').append(getCode(key.trim()));
+                js.append(':').append(getCode(key.trim()));
             }
             if (mFunc != null)
-                js.append(String.format("bindKey('%s', %s);%n", sb.toString(), mFunc));
+                js.append("', ").append(mFunc).append(");");
             else if (mUrl != null)
-                js.append(String.format("bindKey('%s', function(){ window.location=\"%s\";});%n", sb.toString(), mUrl));
+                js.append("', function(){ window.location=\"").append(mUrl).append("\";});");
             else
-                js.append(String.format("bindKey('%s', '%s');%n", sb.toString(), mId));
+                js.append("', '").append(mId).append("');");
+            js.append(LINE_SEP);
         }
         return js.toString();
     }
@@ -19,7 +19,6 @@ package com.zimbra.cs.taglib.tag;
 import java.io.IOException;
 import java.util.Calendar;
 import java.util.TimeZone;
-import java.util.regex.Pattern;
 
 import javax.servlet.jsp.JspContext;
 import javax.servlet.jsp.JspException;
@@ -27,21 +26,25 @@ import javax.servlet.jsp.JspTagException;
 import javax.servlet.jsp.PageContext;
 
 import com.zimbra.common.auth.ZAuthToken;
+import com.zimbra.common.calendar.TZIDMapper;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.AccountConstants;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.soap.MailConstants;
 import com.zimbra.common.soap.SoapProtocol;
 import com.zimbra.common.soap.SoapTransport;
 import com.zimbra.common.soap.ZimbraNamespace;
 import com.zimbra.common.zclient.ZClientException;
+import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.taglib.ZJspSession;
 import com.zimbra.cs.taglib.tag.TagUtil.JsonDebugListener;
+import com.zimbra.cs.taglib.tag.TagUtil.RawJsonTransport;
 import com.zimbra.client.ZFolder;
 import com.zimbra.client.ZMailbox;
 
 public class CalSearchJSONTag extends ZimbraSimpleTag {
 
-    private static final Pattern sSCRIPT = Pattern.compile("</script>", Pattern.CASE_INSENSITIVE);
+    private static final String E_FAULT = "Fault";
 
     private String mVar;
     private ZAuthToken mAuthToken;
@@ -63,13 +66,11 @@ public class CalSearchJSONTag extends ZimbraSimpleTag {
             PageContext pageContext = (PageContext) ctxt;
             String url = ZJspSession.getSoapURL(pageContext);
             String remoteAddr = ZJspSession.getRemoteAddr(pageContext);
-            Element e = getBootstrapCalSearchJSON(url, remoteAddr, mAuthToken, mCsrfToken, mItemsPerPage, mTypes);
+            ZMailbox mbox = ZJspSession.getSessionMailbox(pageContext, mAuthToken);
+            String json = getBootstrapCalSearchJSONText(mbox, url, remoteAddr, mAuthToken, mCsrfToken, mItemsPerPage, mTypes);
 
 			// Replace "</script>" with "</scr" + "ipt>" because html parsers recognize the close script tag.
-			String json = e.toString();
-			String json2 = sSCRIPT.matcher(json).replaceAll("</scr\"+\"ipt>");
-
-			ctxt.setAttribute(mVar, json2,  PageContext.REQUEST_SCOPE);
+			ctxt.setAttribute(mVar, TagUtil.escapeScriptEndTags(json),  PageContext.REQUEST_SCOPE);
 
         } catch (ServiceException e) {
             throw new JspTagException(e.getMessage(), e);
@@ -102,17 +103,111 @@ public class CalSearchJSONTag extends ZimbraSimpleTag {
      * @throws ServiceException on error
      */
     public static Element getBootstrapCalSearchJSON(String url, String remoteAddr, ZAuthToken authToken, String csrfToken, String itemsPerPage, String searchTypes) throws ServiceException {
-        ZMailbox.Options options = new ZMailbox.Options(authToken, url);
-        options.setNoSession(false);
-        options.setAuthAuthToken(false);
-        options.setClientIp(remoteAddr);
-
-        ZMailbox mbox = ZMailbox.getMailbox(options);
-        if (csrfToken != null) {
-            mbox.initCsrfToken(csrfToken);
+        BootstrapRequest req = BootstrapRequest.create(null, url, remoteAddr, authToken, csrfToken, itemsPerPage, searchTypes);
+        try {
+            JsonDebugListener debug = new JsonDebugListener();
+            SoapTransport transport = TagUtil.newJsonTransport(url, remoteAddr, authToken, csrfToken, debug);
+            transport.invoke(req.batch);
+
+            Element e = debug.getEnvelope();
+
+            //search params included in response
+            req.setResponseParams(e.addElement(MailConstants.E_SEARCH));
+
+            return e;
+
+        } catch (IOException e) {
+            throw ZClientException.IO_ERROR("invoke "+e.getMessage(), e);
         }
+    }
+
+    /**
+     * Same as {@link #getBootstrapCalSearchJSON(String, String, ZAuthToken, String, String, String)}, but
+     * returns the response envelope as the JSON text sent by the server, without parsing and
+     * re-serializing it.
+     */
+    public static String getBootstrapCalSearchJSONText(String url, String remoteAddr, ZAuthToken authToken, String csrfToken, String itemsPerPage, String searchTypes) throws ServiceException {
+        return getBootstrapCalSearchJSONText(null, url, remoteAddr, authToken, csrfToken, itemsPerPage, searchTypes);
+    }
+
+    /**
+     * Same as {@link #getBootstrapCalSearchJSONText(String, String, ZAuthToken, String, String, String)}, but
+     * takes the time zone and checked calendars from the given mailbox, if not null, so that only the
+     * search itself goes to the server.
+     *
+     * @param mbox the mailbox of the current JSP session, or null
+     */
+    public static String getBootstrapCalSearchJSONText(ZMailbox mbox, String url, String remoteAddr, ZAuthToken authToken, String csrfToken, String itemsPerPage, String searchTypes) throws ServiceException {
+        BootstrapRequest req = BootstrapRequest.create(mbox, url, remoteAddr, authToken, csrfToken, itemsPerPage, searchTypes);
         try {
-            TimeZone tz = mbox.getPrefs().getTimeZone();
+            RawJsonTransport transport = TagUtil.newRawJsonTransport(url, remoteAddr, authToken, csrfToken);
+            transport.invoke(req.batch);
+
+            //search params included in response
+            Element responseParams = new Element.JSONElement(MailConstants.E_SEARCH);
+            req.setResponseParams(responseParams);
+
+            return TagUtil.addToJsonEnvelope(transport.getResponse(), responseParams);
+
+        } catch (IOException e) {
+            throw ZClientException.IO_ERROR("invoke "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The GetMiniCal + Search batch for the current month, and the search
+     * parameters that are echoed back to the client with the response.
+     */
+    private static class BootstrapRequest {
+        Element batch;
+        long calStart;
+        long calEnd;
+        String searchQuery;
+        String checkedCalendars;
+
+        /**
+         * Builds the request from the mailbox if there is one. Otherwise the time zone and
+         * checked calendars are fetched in a single batch, instead of letting a new ZMailbox
+         * load its account info and folder tree with separate requests.
+         */
+        static BootstrapRequest create(ZMailbox mbox, String url, String remoteAddr, ZAuthToken authToken, String csrfToken, String itemsPerPage, String searchTypes) throws ServiceException {
+            if (mbox != null) {
+                StringBuilder sb = new StringBuilder();
+                getCheckedCalendarFoldersRecursive(mbox.getUserRoot(), sb);
+                return new BootstrapRequest(mbox.getPrefs().getTimeZone(), sb.toString(), itemsPerPage, searchTypes);
+            }
+
+            Element batch = new Element.JSONElement(ZimbraNamespace.E_BATCH_REQUEST);
+            batch.addElement(AccountConstants.GET_INFO_REQUEST).addAttribute(AccountConstants.A_SECTIONS, AccountConstants.E_PREFS);
+            batch.addElement(MailConstants.GET_FOLDER_REQUEST).addAttribute(MailConstants.A_DEFAULT_VIEW, ZFolder.View.appointment.name());
+
+            Element resp;
+            try {
+                resp = TagUtil.newJsonTransport(url, remoteAddr, authToken, csrfToken, null).invoke(batch);
+            } catch (IOException e) {
+                throw ZClientException.IO_ERROR("invoke "+e.getMessage(), e);
+            }
+            Element fault = resp.getOptionalElement(E_FAULT);
+            if (fault != null) {
+                throw ServiceException.FAILURE("unable to get calendar bootstrap info: " + fault, null);
+            }
+
+            TimeZone tz = null;
+            Element prefs = resp.getElement(AccountConstants.E_GET_INFO_RESPONSE).getOptionalElement(AccountConstants.E_PREFS);
+            if (prefs != null) {
+                for (Element.KeyValuePair pref : prefs.listKeyValuePairs(AccountConstants.E_PREF, AccountConstants.A_NAME)) {
+                    if (Provisioning.A_zimbraPrefTimeZoneId.equals(pref.getKey())) {
+                        tz = TimeZone.getTimeZone(TZIDMapper.canonicalize(pref.getValue()));
+                    }
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            getCheckedCalendarFoldersRecursive(resp.getElement(MailConstants.E_GET_FOLDER_RESPONSE), sb);
+            return new BootstrapRequest(tz, sb.toString(), itemsPerPage, searchTypes);
+        }
+
+        BootstrapRequest(TimeZone tz, String checkedCalendars, String itemsPerPage, String searchTypes) {
+            this.checkedCalendars = checkedCalendars;
 
             Calendar currentDay = tz == null ? Calendar.getInstance() : Calendar.getInstance(tz);
             currentDay.setTimeInMillis(System.currentTimeMillis());
@@ -122,25 +217,21 @@ public class CalSearchJSONTag extends ZimbraSimpleTag {
             currentDay.set(Calendar.MILLISECOND, 0);
             currentDay.set(Calendar.DAY_OF_MONTH, 1);
             
-            StringBuilder sb = new StringBuilder();
-            getCheckedCalendarFoldersRecursive(mbox.getUserRoot(), sb);
-            String checkedCalendars = sb.toString();
-
             Calendar other = Calendar.getInstance(currentDay.getTimeZone());
             other.setTimeInMillis(currentDay.getTimeInMillis());
             //7 days for reminder search and 1 day for timezone difference
             other.add(Calendar.DAY_OF_MONTH, -8);
 
-            long calStart = other.getTimeInMillis();
+            calStart = other.getTimeInMillis();
 
             other.setTimeInMillis(currentDay.getTimeInMillis());
             //no of days shown for minical
             other.add(Calendar.DAY_OF_MONTH, 42);
 
-            long calEnd = other.getTimeInMillis();
+            calEnd = other.getTimeInMillis();
 
             //BatchRequest
-            Element batch = new Element.JSONElement(ZimbraNamespace.E_BATCH_REQUEST);
+            batch = new Element.JSONElement(ZimbraNamespace.E_BATCH_REQUEST);
 
             //GetMiniCalRequest
             Element miniCalRequest = batch.addElement(MailConstants.GET_MINI_CAL_REQUEST);
@@ -148,7 +239,7 @@ public class CalSearchJSONTag extends ZimbraSimpleTag {
             miniCalRequest.addAttribute(MailConstants.A_CAL_END_TIME, calEnd);
 
             String [] sArray = null;
-            StringBuilder searchQuery = new StringBuilder();
+            StringBuilder query = new StringBuilder();
 
             if (checkedCalendars!=null) {
                 if(checkedCalendars.indexOf(",") == -1){
@@ -159,8 +250,8 @@ public class CalSearchJSONTag extends ZimbraSimpleTag {
                 for(int i=0; i<sArray.length; i++) {
                     Element folder = miniCalRequest.addElement(MailConstants.E_FOLDER);
                     folder.addAttribute(MailConstants.A_ID, sArray[i]);
-                    if (searchQuery.length() > 1) searchQuery.append(" or ");
-                    searchQuery.append("inid:").append("\""+sArray[i]+"\"");
+                    if (query.length() > 1) query.append(" or ");
+                    query.append("inid:").append("\""+sArray[i]+"\"");
                 }
             }
 
@@ -175,26 +266,36 @@ public class CalSearchJSONTag extends ZimbraSimpleTag {
             search.addAttribute(MailConstants.A_QUERY_OFFSET, 0);
 
             Element queryEl = search.addElement(MailConstants.E_QUERY);
-            queryEl.setText(searchQuery.toString());
-
-            JsonDebugListener debug = new JsonDebugListener();
-            SoapTransport transport = TagUtil.newJsonTransport(url, remoteAddr, authToken, csrfToken, debug);
-            transport.invoke(batch);
-
-            Element e = debug.getEnvelope();
+            searchQuery = query.toString();
+            queryEl.setText(searchQuery);
+        }
 
-            //search params included in response
-            Element responseParams = e.addElement(MailConstants.E_SEARCH);
+        void setResponseParams(Element responseParams) {
             responseParams.addAttribute(MailConstants.A_CAL_START_TIME, calStart);
             responseParams.addAttribute(MailConstants.A_CAL_END_TIME, calEnd);
             Element queryElement = responseParams.addElement(MailConstants.A_QUERY);
-            queryElement.setText(searchQuery.toString());
+            queryElement.setText(searchQuery);
             responseParams.addAttribute(MailConstants.A_FOLDER, checkedCalendars);
-            
-            return e;
+        }
+    }
 
-        } catch (IOException e) {
-            throw ZClientException.IO_ERROR("invoke "+e.getMessage(), e);
+    /**
+     * Same as {@link #getCheckedCalendarFoldersRecursive(ZFolder, StringBuilder)}, for the folder
+     * and mountpoint elements of a GetFolderResponse.
+     */
+    private static void getCheckedCalendarFoldersRecursive(Element e, StringBuilder sb) {
+        for (Element f : e.listElements()) {
+            String name = f.getName();
+            if (!name.equals(MailConstants.E_FOLDER) && !name.equals(MailConstants.E_MOUNT)) {
+                continue;
+            }
+            String flags = f.getAttribute(MailConstants.A_FLAGS, "");
+            if (ZFolder.View.appointment.name().equals(f.getAttribute(MailConstants.A_DEFAULT_VIEW, null)) &&
+                    flags.indexOf(ZFolder.Flag.checked.getFlagChar()) != -1) {
+                if (sb.length() > 0) sb.append(',');
+                sb.append(f.getAttribute(MailConstants.A_ID, ""));
+            }
+            getCheckedCalendarFoldersRecursive(f, sb);
         }
     }
 
@@ -18,6 +18,7 @@
 package com.zimbra.cs.taglib.tag;
 
 import com.zimbra.client.ZMailbox;
+import com.zimbra.cs.taglib.bean.ApptSummaryRangeCache;
 
 import javax.servlet.jsp.JspException;
 import java.io.IOException;
@@ -27,5 +28,6 @@ public class ClearApptSummaryCacheTag extends ZimbraSimpleTag {
     public void doTag() throws JspException, IOException {
         ZMailbox mbox = getMailbox();
         mbox.clearApptSummaryCache();
+        ApptSummaryRangeCache.clear(mbox);
     }
 }
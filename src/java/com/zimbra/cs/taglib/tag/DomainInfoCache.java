@@ -0,0 +1,277 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.taglib.tag;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.jstl.core.Config;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.zimbra.client.ZDomain;
+import com.zimbra.client.ZSoapProvisioning;
+import com.zimbra.common.account.Key;
+import com.zimbra.common.auth.ZAuthToken;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.net.SocketFactories;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.AdminConstants;
+import com.zimbra.common.util.DateUtil;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Application-wide cache of unauthenticated GetDomainInfo results.
+ * <p>
+ * Expired entries are still served while a single background refresh per key
+ * fetches the new value, so an expiry never makes concurrent requests wait on
+ * the admin service. Concurrent misses for the same key share one request.
+ * Entry lifetimes are spread by +/-10% so that entries loaded together don't
+ * all expire together. Unknown domains are cached for a shorter time so that
+ * requests for random hostnames can't be used to hammer the admin service.
+ * <p>
+ * All cached lookups share a single unauthenticated provisioning client.
+ */
+public class DomainInfoCache {
+
+    public static final String CONFIG_ZIMBRA_DOMAININFO_TTL = "zimbra.domaininfo.ttl";
+    public static final String CONFIG_ZIMBRA_DOMAININFO_CACHE_SIZE = "zimbra.domaininfo.cachesize";
+
+    private static final String DEFAULT_TTL_STR = "60m";
+    private static final long DEFAULT_TTL = 60*60*1000;
+    private static final long NEGATIVE_TTL = 60*1000;
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+    private static final double TTL_JITTER = 0.1;
+
+    static {
+        SocketFactories.registerProtocols();
+    }
+
+    private static final ThreadPoolExecutor sRefresher = new ThreadPoolExecutor(1, 2, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(1000),
+            new ThreadFactoryBuilder().setNameFormat("DomainInfoRefresh-%d").setDaemon(true).build());
+
+    private static volatile DomainInfoCache sInstance;
+    private static volatile ZSoapProvisioning sProvisioning;
+
+    private final long mTtl;
+    private final long mNegativeTtl;
+    private final Cache<String, Entry> mEntries;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mStaleHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mRefreshes = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+
+    private DomainInfoCache(long ttl, int size) {
+        mTtl = ttl;
+        mNegativeTtl = Math.min(ttl, NEGATIVE_TTL);
+        mEntries = CacheBuilder.newBuilder().maximumSize(size).build();
+    }
+
+    /**
+     * Returns the shared cache, configured from the <code>zimbra.domaininfo.ttl</code>
+     * and <code>zimbra.domaininfo.cachesize</code> context parameters on first use.
+     */
+    public static DomainInfoCache getInstance(PageContext ctxt) {
+        DomainInfoCache cache = sInstance;
+        if (cache == null) {
+            synchronized (DomainInfoCache.class) {
+                cache = sInstance;
+                if (cache == null) {
+                    String ttl = (String) Config.find(ctxt, CONFIG_ZIMBRA_DOMAININFO_TTL);
+                    String size = (String) Config.find(ctxt, CONFIG_ZIMBRA_DOMAININFO_CACHE_SIZE);
+                    cache = new DomainInfoCache(
+                            DateUtil.getTimeInterval(ttl != null ? ttl : DEFAULT_TTL_STR, DEFAULT_TTL),
+                            parseSize(size));
+                    sInstance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    private static int parseSize(String size) {
+        if (size != null) {
+            try {
+                return Integer.parseInt(size.trim());
+            } catch (NumberFormatException e) {
+                ZimbraLog.webclient.warn("invalid %s: %s", CONFIG_ZIMBRA_DOMAININFO_CACHE_SIZE, size);
+            }
+        }
+        return DEFAULT_CACHE_SIZE;
+    }
+
+    /**
+     * Fetches domain info from the admin service, bypassing the cache.
+     */
+    public static ZDomain fetch(Key.DomainBy by, String value, ZAuthToken authToken, String csrfToken)
+    throws ServiceException {
+        ZSoapProvisioning sp = newProvisioning();
+        sp.setAuthToken(authToken);
+        sp.setCsrfToken(csrfToken);
+        return sp.getDomainInfo(by, value);
+    }
+
+    private static ZSoapProvisioning newProvisioning() {
+        ZSoapProvisioning sp = new ZSoapProvisioning();
+        String server = LC.zimbra_zmprov_default_soap_server.value();
+        int port = LC.zimbra_admin_service_port.intValue();
+        sp.soapSetURI(LC.zimbra_admin_service_scheme.value()+server+":"+port+ AdminConstants.ADMIN_SERVICE_URI);
+        return sp;
+    }
+
+    private static ZSoapProvisioning getProvisioning() {
+        ZSoapProvisioning sp = sProvisioning;
+        if (sp == null) {
+            synchronized (DomainInfoCache.class) {
+                sp = sProvisioning;
+                if (sp == null) {
+                    sp = newProvisioning();
+                    sProvisioning = sp;
+                }
+            }
+        }
+        return sp;
+    }
+
+    /**
+     * Returns the cached domain info, loading it if this is the first request
+     * for it. Returns null if the domain is unknown or couldn't be fetched.
+     */
+    public ZDomain get(final Key.DomainBy by, final String value) {
+        final String key = by + "/" + value;
+        Entry entry = mEntries.getIfPresent(key);
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            try {
+                entry = mEntries.get(key, new Callable<Entry>() {
+                    public Entry call() {
+                        return load(by, value, null);
+                    }
+                });
+            } catch (ExecutionException e) {
+                ZimbraLog.webclient.error("Error during GetDomainInfoRequest invocation", e.getCause());
+                return null;
+            } catch (UncheckedExecutionException e) {
+                ZimbraLog.webclient.error("Error during GetDomainInfoRequest invocation", e.getCause());
+                return null;
+            }
+        } else if (entry.expireTime <= System.currentTimeMillis()) {
+            mStaleHits.incrementAndGet();
+            refresh(key, entry, by, value);
+        } else {
+            mHits.incrementAndGet();
+        }
+        return entry.domain;
+    }
+
+    public void invalidate(Key.DomainBy by, String value) {
+        mEntries.invalidate(by + "/" + value);
+    }
+
+    public long size() { return mEntries.size(); }
+
+    /** Requests answered from a fresh entry. */
+    public long getHits() { return mHits.get(); }
+
+    /** Requests answered from an expired entry while it was being refreshed. */
+    public long getStaleHits() { return mStaleHits.get(); }
+
+    /** Requests for which no entry was cached. */
+    public long getMisses() { return mMisses.get(); }
+
+    /** Background refreshes started. */
+    public long getRefreshes() { return mRefreshes.get(); }
+
+    /** Admin requests that failed. */
+    public long getErrors() { return mErrors.get(); }
+
+    @Override
+    public String toString() {
+        return "DomainInfoCache[size=" + size() + ", hits=" + getHits() + ", staleHits=" + getStaleHits() +
+                ", misses=" + getMisses() + ", refreshes=" + getRefreshes() + ", errors=" + getErrors() + "]";
+    }
+
+    private void refresh(final String key, final Entry stale, final Key.DomainBy by, final String value) {
+        if (!stale.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        mRefreshes.incrementAndGet();
+        try {
+            sRefresher.execute(new Runnable() {
+                public void run() {
+                    Entry fresh = load(by, value, stale);
+                    mEntries.asMap().replace(key, stale, fresh);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stale.refreshing.set(false);
+            ZimbraLog.webclient.debug("domain info refresh rejected for %s", key);
+        }
+    }
+
+    /**
+     * If the admin service can't be reached, a previously known domain keeps
+     * being served and is retried after the negative TTL.
+     */
+    private Entry load(Key.DomainBy by, String value, Entry previous) {
+        long now = System.currentTimeMillis();
+        try {
+            ZDomain domain = getProvisioning().getDomainInfo(by, value);
+            if (ZimbraLog.webclient.isDebugEnabled()) {
+                ZimbraLog.webclient.debug("loaded domain info for %s/%s: %s", by, value, this);
+            }
+            return new Entry(domain, now + (domain != null ? jitter(mTtl) : mNegativeTtl));
+        } catch (ServiceException e) {
+            mErrors.incrementAndGet();
+            ZimbraLog.webclient.error("Error during GetDomainInfoRequest invocation", e);
+            ZDomain domain = previous != null ? previous.domain : null;
+            return new Entry(domain, now + mNegativeTtl);
+        }
+    }
+
+    private static long jitter(long ttl) {
+        long spread = (long) (ttl * TTL_JITTER);
+        if (spread <= 0) {
+            return ttl;
+        }
+        return ttl - spread + ThreadLocalRandom.current().nextLong(2 * spread + 1);
+    }
+
+    private static class Entry {
+        final ZDomain domain;
+        final long expireTime;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(ZDomain domain, long expireTime) {
+            this.domain = domain;
+            this.expireTime = expireTime;
+        }
+    }
+}
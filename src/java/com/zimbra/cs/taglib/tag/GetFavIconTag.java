@@ -17,10 +17,7 @@
 package com.zimbra.cs.taglib.tag;
 
 import com.zimbra.client.ZDomain;
-import com.zimbra.client.ZSoapProvisioning;
 import com.zimbra.common.account.Key;
-import com.zimbra.common.localconfig.LC;
-import com.zimbra.common.soap.AdminConstants;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.util.HttpUtil;
 
@@ -45,12 +42,6 @@ public class GetFavIconTag extends ZimbraSimpleTag {
 
     public void doTag() throws JspException, IOException {
         try {
-            String soapUri = LC.zimbra_admin_service_scheme.value() + LC.zimbra_zmprov_default_soap_server.value() +':' +
-                               LC.zimbra_admin_service_port.intValue() + AdminConstants.ADMIN_SERVICE_URI;
-
-            ZSoapProvisioning provisioning = new ZSoapProvisioning();
-            provisioning.soapSetURI(soapUri);
-
             String serverName = this.request.getParameter("customerDomain");
 
             if (serverName == null) {
@@ -58,7 +49,8 @@ public class GetFavIconTag extends ZimbraSimpleTag {
             }
 
 			// get info
-            ZDomain info = provisioning.getDomainInfo(Key.DomainBy.virtualHostname, serverName);
+            ZDomain info = DomainInfoCache.getInstance((PageContext) getJspContext())
+                    .get(Key.DomainBy.virtualHostname, serverName);
             if (info != null) {
                 String favicon = info.getSkinFavicon();
                 getJspContext().setAttribute(this.var, favicon, PageContext.REQUEST_SCOPE);
@@ -38,6 +38,7 @@ import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.zclient.ZClientException;
 import com.zimbra.cs.taglib.ZJspSession;
 import com.zimbra.cs.taglib.tag.TagUtil.JsonDebugListener;
+import com.zimbra.cs.taglib.tag.TagUtil.RawJsonTransport;
 
 public class GetInfoJSONTag extends ZimbraSimpleTag {
 
@@ -85,9 +86,9 @@ public class GetInfoJSONTag extends ZimbraSimpleTag {
                     mSortBy = this.getSortByAttr(folderId, mSortBy);
                 }
             }
-            Element e = getBootstrapJSON(url, remoteAddr, mAuthToken, mCsrfToken, originalUserAgent,
+            String json = getBootstrapJSONText(url, remoteAddr, mAuthToken, mCsrfToken, originalUserAgent,
                 mDoSearch, mItemsPerPage, mTypes, mSortBy, mFullConversation);
-            ctxt.setAttribute(mVar, e.toString(),  PageContext.REQUEST_SCOPE);
+            ctxt.setAttribute(mVar, json,  PageContext.REQUEST_SCOPE);
         } catch (ServiceException e) {
             throw new JspTagException(e.getMessage(), e);
         }
@@ -154,27 +155,51 @@ public class GetInfoJSONTag extends ZimbraSimpleTag {
         transport.setOriginalUserAgent(originalUserAgent);
 
         try {
-            Element batch = Element.create(SoapProtocol.SoapJS, ZimbraNamespace.E_BATCH_REQUEST);
-            Element getInfoRequest = batch.addElement(AccountConstants.GET_INFO_REQUEST);
-			getInfoRequest.addAttribute("rights", "createDistList");
-            if (doSearch) {
-                Element search = batch.addElement(MailConstants.SEARCH_REQUEST);
-                if (itemsPerPage != null && itemsPerPage.length() > 0)
-                    search.addAttribute(MailConstants.A_QUERY_LIMIT, itemsPerPage);
-                if (searchTypes != null && searchTypes.length() > 0)
-                    search.addAttribute(MailConstants.A_SEARCH_TYPES, searchTypes);
-                if (sortBy != null && !sortBy.isEmpty()) {
-                    search.addAttribute(MailConstants.A_SORTBY, sortBy);
-                }
-	            search.addAttribute(MailConstants.A_FULL_CONVERSATION, fullConversation);
-            }
-            transport.invoke(batch);
+            transport.invoke(newBootstrapRequest(doSearch, itemsPerPage, searchTypes, sortBy, fullConversation));
             return debug.getEnvelope();
         } catch (IOException e) {
             throw ZClientException.IO_ERROR("invoke "+e.getMessage(), e);
         }
     }
 
+    /**
+     * Same as {@link #getBootstrapJSON(String, String, ZAuthToken, String, String, boolean, String, String,
+     * String, boolean)}, but returns the response envelope as the JSON text sent by the server, without
+     * parsing and re-serializing it.
+     */
+    public static String getBootstrapJSONText(String url, String remoteAddr, ZAuthToken authToken,
+        String csrfToken, String originalUserAgent, boolean doSearch, String itemsPerPage,
+        String searchTypes, String sortBy, boolean fullConversation) throws ServiceException {
+        RawJsonTransport transport = TagUtil.newRawJsonTransport(url, remoteAddr, authToken, csrfToken);
+        transport.setOriginalUserAgent(originalUserAgent);
+
+        try {
+            transport.invoke(newBootstrapRequest(doSearch, itemsPerPage, searchTypes, sortBy, fullConversation));
+            return transport.getResponse();
+        } catch (IOException e) {
+            throw ZClientException.IO_ERROR("invoke "+e.getMessage(), e);
+        }
+    }
+
+    private static Element newBootstrapRequest(boolean doSearch, String itemsPerPage, String searchTypes,
+        String sortBy, boolean fullConversation) {
+        Element batch = Element.create(SoapProtocol.SoapJS, ZimbraNamespace.E_BATCH_REQUEST);
+        Element getInfoRequest = batch.addElement(AccountConstants.GET_INFO_REQUEST);
+        getInfoRequest.addAttribute("rights", "createDistList");
+        if (doSearch) {
+            Element search = batch.addElement(MailConstants.SEARCH_REQUEST);
+            if (itemsPerPage != null && itemsPerPage.length() > 0)
+                search.addAttribute(MailConstants.A_QUERY_LIMIT, itemsPerPage);
+            if (searchTypes != null && searchTypes.length() > 0)
+                search.addAttribute(MailConstants.A_SEARCH_TYPES, searchTypes);
+            if (sortBy != null && !sortBy.isEmpty()) {
+                search.addAttribute(MailConstants.A_SORTBY, sortBy);
+            }
+            search.addAttribute(MailConstants.A_FULL_CONVERSATION, fullConversation);
+        }
+        return batch;
+    }
+
     /**
      * Get folderId based on path
      * @param folderPath for example inbox/Archived
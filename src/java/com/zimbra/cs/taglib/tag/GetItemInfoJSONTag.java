@@ -25,18 +25,16 @@ import com.zimbra.common.soap.MailConstants;
 import com.zimbra.common.soap.SoapProtocol;
 import com.zimbra.common.zclient.ZClientException;
 import com.zimbra.cs.taglib.tag.TagUtil.JsonDebugListener;
+import com.zimbra.cs.taglib.tag.TagUtil.RawJsonTransport;
 
 import javax.servlet.jsp.JspContext;
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.JspTagException;
 import javax.servlet.jsp.PageContext;
 import java.io.IOException;
-import java.util.regex.Pattern;
 
 public class GetItemInfoJSONTag extends ZimbraSimpleTag {
 
-    private static final Pattern sSCRIPT = Pattern.compile("</script>", Pattern.CASE_INSENSITIVE);
-
     private String mVar;
     private String mId;
     private String mAuthToken;
@@ -53,8 +51,8 @@ public class GetItemInfoJSONTag extends ZimbraSimpleTag {
             String url = ZJspSession.getSoapURL(pageContext);
             String remoteAddr = ZJspSession.getRemoteAddr(pageContext);
             ZAuthToken authToken = new ZAuthToken(mAuthToken);
-            Element e = getItemInfoJSON(url, remoteAddr, authToken, mId);
-            ctxt.setAttribute(mVar, sSCRIPT.matcher(e.toString()).replaceAll("</scr\"+\"ipt>"),  PageContext.REQUEST_SCOPE);
+            String json = getItemInfoJSONText(url, remoteAddr, authToken, mId);
+            ctxt.setAttribute(mVar, TagUtil.escapeScriptEndTags(json),  PageContext.REQUEST_SCOPE);
         } catch (ServiceException e) {
             throw new JspTagException(e.getMessage(), e);
         }
@@ -66,13 +64,33 @@ public class GetItemInfoJSONTag extends ZimbraSimpleTag {
         SoapTransport transport = TagUtil.newJsonTransport(url, remoteAddr, authToken, debug);
 
         try {
-            Element req = Element.create(SoapProtocol.SoapJS, MailConstants.GET_ITEM_REQUEST);            
-            Element item = req.addElement(MailConstants.E_ITEM);
-            item.addAttribute(MailConstants.A_ID, mId);
-            transport.invokeWithoutSession(req);
+            transport.invokeWithoutSession(newGetItemRequest(mId));
             return debug.getEnvelope();
         } catch (IOException e) {
             throw ZClientException.IO_ERROR("invoke "+e.getMessage(), e);
         }
-    }    
+    }
+
+    /**
+     * Same as {@link #getItemInfoJSON}, but returns the response envelope as the JSON text sent by the
+     * server, without parsing and re-serializing it.
+     */
+    public static String getItemInfoJSONText(String url, String remoteAddr, ZAuthToken authToken, String mId) throws ServiceException{
+
+        RawJsonTransport transport = TagUtil.newRawJsonTransport(url, remoteAddr, authToken, null);
+
+        try {
+            transport.invokeWithoutSession(newGetItemRequest(mId));
+            return transport.getResponse();
+        } catch (IOException e) {
+            throw ZClientException.IO_ERROR("invoke "+e.getMessage(), e);
+        }
+    }
+
+    private static Element newGetItemRequest(String id) {
+        Element req = Element.create(SoapProtocol.SoapJS, MailConstants.GET_ITEM_REQUEST);
+        Element item = req.addElement(MailConstants.E_ITEM);
+        item.addAttribute(MailConstants.A_ID, id);
+        return req;
+    }
 }
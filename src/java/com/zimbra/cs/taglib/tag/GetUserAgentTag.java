@@ -45,12 +45,12 @@ public class GetUserAgentTag extends ZimbraSimpleTag {
         if (session) {
             ua = (ZUserAgentBean) ctxt.getAttribute(UA_SESSION, PageContext.SESSION_SCOPE);
             if ( ua == null) {
-                ua = new ZUserAgentBean(req.getHeader("User-Agent"));
+                ua = ZUserAgentBean.getInstance(req.getHeader("User-Agent"));
                 ctxt.setAttribute(UA_SESSION, ua,  PageContext.SESSION_SCOPE);
             }
 
         } else {
-            ua = new ZUserAgentBean(req.getHeader("User-Agent"));
+            ua = ZUserAgentBean.getInstance(req.getHeader("User-Agent"));
         }
         return ua;
     }
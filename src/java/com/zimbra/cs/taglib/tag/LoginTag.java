@@ -177,7 +177,7 @@ public class LoginTag extends ZimbraSimpleTag {
             if (mUrl == null) {
                 if (mAuthToken == null && WebSplitUtil.isZimbraWebClientSplitEnabled()) {
                     String protocol = (ZJspSession.isProtocolModeHttps() ? "httpssl" : "http");
-                    NginxAuthServer nginxLookUpServer = NginxRouteLookUpConnector.getClient().getRouteforAccount(mUsername, "username",
+                    NginxAuthServer nginxLookUpServer = NginxRouteLookUpConnector.getRouteforAccount(mUsername, "username",
                             protocol, HttpUtil.getVirtualHost(request), request.getRemoteAddr(), request.getHeader("Virtual-Host"));
                     if (null == nginxLookUpServer) {
                         throw new SoapFaultException("Nginx route lookup error: Authentication failed for [" + mUsername + "]",
@@ -212,6 +212,8 @@ public class LoginTag extends ZimbraSimpleTag {
             options.setOriginalUserAgent(request.getHeader("User-Agent"));
             ZMailbox mbox = ZMailbox.getMailbox(options);
             ZAuthResult authResult = mbox.getAuthResult();
+            // warm the zimbraId route used by getSoapURL while the rest of the login runs
+            ZJspSession.prefetchRoute(pageContext, mbox.getAuthToken());
             if (!authResult.getTwoFactorAuthRequired()) {
                 BeanUtils.checkWebClientEnabled(mbox);
             }
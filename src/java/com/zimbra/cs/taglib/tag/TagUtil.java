@@ -18,6 +18,7 @@
 package com.zimbra.cs.taglib.tag;
 
 import com.zimbra.common.auth.ZAuthToken;
+import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.soap.SoapHttpTransport;
 import com.zimbra.common.soap.SoapProtocol;
@@ -26,25 +27,110 @@ import com.zimbra.common.soap.SoapTransport.DebugListener;
 
 public class TagUtil {
 
+    private static final String SCRIPT_END_TAG = "</script>";
+    private static final String SCRIPT_END_TAG_REPLACEMENT = "</scr\"+\"ipt>";
+
     public static class JsonDebugListener implements DebugListener {
         Element env;
         public void sendSoapMessage(Element envelope) {}
         public void receiveSoapMessage(Element envelope) {env = envelope; }
         public Element getEnvelope(){ return env; }
     }
-    
+
+    /**
+     * JSON transport that keeps the response envelope as the text the server
+     * sent instead of parsing it into an {@link Element} tree, for callers
+     * that only hand the JSON on to the browser. A response whose body is a
+     * fault is still parsed, so that the fault is thrown as usual.
+     */
+    public static class RawJsonTransport extends SoapHttpTransport {
+        private static final String BODY = "Body";
+        private static final String FAULT_BODY = "\"Body\":{\"Fault\"";
+
+        private String mResponse;
+
+        public RawJsonTransport(String url) {
+            super(url);
+        }
+
+        @Override
+        protected Element parseSoapResponse(String envelopeStr, boolean raw) throws ServiceException {
+            mResponse = envelopeStr;
+            if (envelopeStr.indexOf(FAULT_BODY) != -1) {
+                return super.parseSoapResponse(envelopeStr, raw);
+            }
+            return new Element.JSONElement(BODY);
+        }
+
+        /** Returns the JSON envelope of the last response. */
+        public String getResponse() {
+            return mResponse;
+        }
+    }
+
     public static SoapTransport newJsonTransport(String url, String remoteAddr, ZAuthToken authToken, DebugListener debug) {
         return newJsonTransport(url, remoteAddr, authToken, null, debug);
     }
 
     public static SoapTransport newJsonTransport(String url, String remoteAddr, ZAuthToken authToken, String csrfToken, DebugListener debug) {
         SoapTransport transport = new SoapHttpTransport(url);
+        initJsonTransport(transport, remoteAddr, authToken, csrfToken);
+        transport.setDebugListener(debug);
+        return transport;
+    }
+
+    public static RawJsonTransport newRawJsonTransport(String url, String remoteAddr, ZAuthToken authToken, String csrfToken) {
+        RawJsonTransport transport = new RawJsonTransport(url);
+        initJsonTransport(transport, remoteAddr, authToken, csrfToken);
+        return transport;
+    }
+
+    private static void initJsonTransport(SoapTransport transport, String remoteAddr, ZAuthToken authToken, String csrfToken) {
         transport.setClientIp(remoteAddr);
         transport.setAuthToken(authToken);
         transport.setCsrfToken(csrfToken);
         transport.setRequestProtocol(SoapProtocol.SoapJS);
         transport.setResponseProtocol(SoapProtocol.SoapJS);
-        transport.setDebugListener(debug);
-        return transport;
+    }
+
+    /**
+     * Adds an element to the top level of a JSON envelope, the same way
+     * {@link Element#addElement(Element)} would on the parsed envelope.
+     */
+    public static String addToJsonEnvelope(String envelope, Element child) {
+        String json = child.toString();
+        int end = envelope.lastIndexOf('}');
+        StringBuilder sb = new StringBuilder(envelope.length() + json.length() + child.getName().length() + 8);
+        sb.append(envelope, 0, end).append(",\"").append(child.getName()).append("\":[").append(json).append(']');
+        sb.append(envelope, end, envelope.length());
+        return sb.toString();
+    }
+
+    /**
+     * Replaces "&lt;/script&gt;" (in any case) with "&lt;/scr"+"ipt&gt;" so that JSON
+     * can be embedded in a script block. Scans the input once and returns it
+     * unchanged, without copying, when there is nothing to replace.
+     */
+    public static String escapeScriptEndTags(String json) {
+        if (json == null) {
+            return null;
+        }
+        StringBuilder sb = null;
+        int last = 0;
+        int len = json.length();
+        for (int i = json.indexOf('<'); i != -1; i = json.indexOf('<', i + 1)) {
+            if (json.regionMatches(true, i, SCRIPT_END_TAG, 0, SCRIPT_END_TAG.length())) {
+                if (sb == null) {
+                    sb = new StringBuilder(len + 16);
+                }
+                sb.append(json, last, i).append(SCRIPT_END_TAG_REPLACEMENT);
+                last = i + SCRIPT_END_TAG.length();
+                i = last - 1;
+            }
+        }
+        if (sb == null) {
+            return json;
+        }
+        return sb.append(json, last, len).toString();
     }
 }
@@ -17,9 +17,8 @@
 package com.zimbra.cs.taglib.tag.briefcase;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 import javax.servlet.jsp.JspContext;
 import javax.servlet.jsp.JspException;
@@ -30,6 +29,7 @@ import org.apache.commons.fileupload.FileItem;
 
 import com.zimbra.client.ZMailbox;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.taglib.bean.ZFileUploaderBean;
 import com.zimbra.cs.taglib.bean.ZMessageBean;
 import com.zimbra.cs.taglib.bean.ZMessageComposeBean;
 import com.zimbra.cs.taglib.tag.ZimbraSimpleTag;
@@ -68,10 +68,8 @@ public class SaveBriefcaseTag extends ZimbraSimpleTag {
                 try {
                     for (FileItem item : mFileItems) {
                         if (item.getSize() > 0) {
-                            Map<String, byte[]> attachment = new HashMap<String, byte[]>();
-                            attachment.put(item.getName(), item.get());
-                            String attachmentUploadId = mbox.uploadAttachments(attachment,
-                                1000 * 60);
+                            String attachmentUploadId = ZFileUploaderBean.uploadFileItems(mbox,
+                                Collections.singletonList(item), 1000 * 60);
                             briefIds[i++] = mbox.createDocument(mFolderId, item.getName(),
                                 attachmentUploadId);
                         }
@@ -17,6 +17,7 @@
 
 package com.zimbra.cs.taglib.tag.calendar;
 
+import com.zimbra.cs.taglib.bean.CalendarLayoutPool;
 import com.zimbra.cs.taglib.bean.ZApptCellLayoutBean;
 import com.zimbra.cs.taglib.bean.ZApptDayLayoutBean;
 import com.zimbra.cs.taglib.bean.ZApptMultiDayLayoutBean;
@@ -26,16 +27,19 @@ import com.zimbra.cs.taglib.bean.ZApptAllDayLayoutBean;
 import com.zimbra.cs.taglib.bean.BeanUtils;
 import com.zimbra.cs.taglib.tag.ZimbraSimpleTag;
 import com.zimbra.client.ZAppointmentHit;
+import com.zimbra.common.util.ZimbraLog;
 
 import javax.servlet.jsp.JspContext;
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.jstl.core.Config;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.TimeZone;
 import java.util.Calendar;
+import java.util.concurrent.Callable;
 
 public class ApptMultiDayLayoutTag extends ZimbraSimpleTag {
 
@@ -49,6 +53,9 @@ public class ApptMultiDayLayoutTag extends ZimbraSimpleTag {
     private static final long MSECS_PER_DAY = MSECS_PER_HOUR * 24;
     private static final long MSECS_INCR = MSECS_PER_MINUTE * 15;
 
+    public static final String CONFIG_ZIMBRA_CALENDAR_LAYOUT_PARALLEL_THRESHOLD = "zimbra.calendar.layout.parallelthreshold";
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 500;
+
     private String mVar;
     private TimeZone mTimeZone;
     private long mStart = -1;
@@ -69,6 +76,17 @@ public class ApptMultiDayLayoutTag extends ZimbraSimpleTag {
     boolean mIsShowDeclined;
 
     private List<Boolean> workDays;
+
+    private static class DayRows {
+        final List<List<ZApptCellLayoutBean>> combined;
+        final List<List<ZApptCellLayoutBean>> separate;
+
+        DayRows(List<List<ZApptCellLayoutBean>> combined, List<List<ZApptCellLayoutBean>> separate) {
+            this.combined = combined;
+            this.separate = separate;
+        }
+    }
+
     public void setSchedule(String schedule) { this.mSchedule = schedule; }
     public void setVar(String var) { this.mVar = var; }
     public void setStart(long start) { this.mStart = start; }
@@ -100,7 +118,9 @@ public class ApptMultiDayLayoutTag extends ZimbraSimpleTag {
         }
 
 
-        List<ZApptDayLayoutBean> days = new ArrayList<ZApptDayLayoutBean>();
+        List<ZApptDayLayoutBean> days;
+        List<ZAppointmentHit> appts = mAppointments.getAppointments();
+        boolean parallel = appts.size() >= getParallelThreshold((PageContext) jctxt);
 
         mScheduleMode = (mSchedule != null && mSchedule.length() > 0);
         if (mScheduleMode) {
@@ -112,42 +132,56 @@ public class ApptMultiDayLayoutTag extends ZimbraSimpleTag {
 
             mEnd = BeanUtils.addDay(startCal, 1).getTimeInMillis();
 
-            for (int i=0; i < folders.length; i++) {
-                days.add(new ZApptDayLayoutBean(mAppointments.getAppointments(), startCal, i, mNumDays, folders[i], MSECS_INCR, mIsShowDeclined));
-            }
+            days = ZApptDayLayoutBean.layout(appts, startCal, mNumDays, folders, MSECS_INCR, mIsShowDeclined, parallel);
         } else {
 
             Calendar startCal = Calendar.getInstance(mTimeZone);
             startCal.setTimeInMillis(mStart);
             mEnd = BeanUtils.addDay(startCal, mNumDays).getTimeInMillis();
 
-            for (int i=0; i < mNumDays; i++) {
-                days.add(new ZApptDayLayoutBean(mAppointments.getAppointments(), startCal, i, mNumDays, null, MSECS_INCR, mIsShowDeclined));
-                BeanUtils.getNextDay(startCal);
-//                dayStartTime += MSECS_PER_DAY;
-            }
+            days = ZApptDayLayoutBean.layout(appts, startCal, mNumDays, null, MSECS_INCR, mIsShowDeclined, parallel);
         }
 
         computeDayStartEnd(days);
 
-        List<ZApptRowLayoutBean> rows = computeRows(days);
-        List<ZApptRowLayoutBean> allDayRows = computeAllDayRows(days);
-        List<List<ZApptRowLayoutBean>> rowsSeperatedByDays = computeRowsSeperatedByDays(days);
-        List<List<ZApptRowLayoutBean>> allDayRowsSeperatedByDays = computeAllDayRowsSeperatedByDays(days);
+        List<ZApptRowLayoutBean> rows = new ArrayList<ZApptRowLayoutBean>();
+        List<List<ZApptRowLayoutBean>> rowsSeperatedByDays = new ArrayList<List<ZApptRowLayoutBean>>(days.size());
+        computeRows(days, parallel, rows, rowsSeperatedByDays);
+
+        ZApptAllDayLayoutBean allday = new ZApptAllDayLayoutBean(appts, mStart, mEnd, mNumDays, mScheduleMode, mIsShowDeclined);
+        List<ZApptRowLayoutBean> allDayRows = computeAllDayRows(days, allday);
+        List<List<ZApptRowLayoutBean>> allDayRowsSeperatedByDays = computeAllDayRowsSeperatedByDays(days, allday);
 
         jctxt.setAttribute(mVar, new ZApptMultiDayLayoutBean(days, allDayRows, rows, rowsSeperatedByDays, allDayRowsSeperatedByDays), PageContext.PAGE_SCOPE);
     }
 
-    private List<ZApptRowLayoutBean> computeAllDayRows(List<ZApptDayLayoutBean> days) {
+    private static int getParallelThreshold(PageContext pageContext) {
+        String threshold = (String) Config.find(pageContext, CONFIG_ZIMBRA_CALENDAR_LAYOUT_PARALLEL_THRESHOLD);
+        if (threshold != null) {
+            try {
+                return Integer.parseInt(threshold.trim());
+            } catch (NumberFormatException e) {
+                ZimbraLog.webclient.warn("invalid %s: %s", CONFIG_ZIMBRA_CALENDAR_LAYOUT_PARALLEL_THRESHOLD, threshold);
+            }
+        }
+        return DEFAULT_PARALLEL_THRESHOLD;
+    }
 
-        ZApptAllDayLayoutBean allday = new ZApptAllDayLayoutBean(mAppointments.getAppointments(), mStart, mEnd, mNumDays, mScheduleMode, mIsShowDeclined);
-        double percentPerDay;
+    private double getPercentPerDay() {
         if (mScheduleMode) {
             String folders[] = mSchedule.split(",");
-            percentPerDay = 100.0 / folders.length;
+            return 100.0 / folders.length;
         } else {
-            percentPerDay = 100.0 / mWDays.split(",").length;
+            return 100.0 / mWDays.split(",").length;
         }
+    }
+
+    private boolean isWorkDay(ZApptDayLayoutBean day) {
+        return workDays.get((day.getDay() + (int)mWeekStart) % 7);
+    }
+
+    private List<ZApptRowLayoutBean> computeAllDayRows(List<ZApptDayLayoutBean> days, ZApptAllDayLayoutBean allday) {
+        double percentPerDay = getPercentPerDay();
         List<ZApptRowLayoutBean> allDayRows = new ArrayList<ZApptRowLayoutBean>();
         int rowNum = 0;
         for (List<ZAppointmentHit> row : allday.getRows()) {
@@ -158,7 +192,7 @@ public class ApptMultiDayLayoutTag extends ZimbraSimpleTag {
                 ZApptDayLayoutBean day = days.get(dayIndex);
                 String folderId = day.getFolderId();
 
-                if(!workDays.get((day.getDay() + (int)mWeekStart) % 7))
+                if (!isWorkDay(day))
                  continue;
 
                 ZAppointmentHit match = null;
@@ -197,85 +231,109 @@ public class ApptMultiDayLayoutTag extends ZimbraSimpleTag {
         return allDayRows;
     }
 
-    private List<ZApptRowLayoutBean> computeRows(List<ZApptDayLayoutBean> days) {
-       List<ZApptRowLayoutBean> rows = new ArrayList<ZApptRowLayoutBean>();
-
+    /**
+     * Computes the timed rows of all days, both combined into one grid of
+     * the work days and separately per day. Each day is laid out
+     * independently, concurrently if <code>parallel</code> is set, and the
+     * results are then merged in day order.
+     */
+    private void computeRows(List<ZApptDayLayoutBean> days, boolean parallel,
+                             List<ZApptRowLayoutBean> rows, List<List<ZApptRowLayoutBean>> rowsSeperatedByDays) {
+        final double percentPerDay = getPercentPerDay();
+
+        List<Callable<DayRows>> tasks = new ArrayList<Callable<DayRows>>(days.size());
+        for (final ZApptDayLayoutBean day : days) {
+            tasks.add(new Callable<DayRows>() {
+                public DayRows call() {
+                    List<List<ZApptCellLayoutBean>> combined = isWorkDay(day) ? computeDayCells(day, percentPerDay) : null;
+                    return new DayRows(combined, computeDayCells(day, 100.0));
+                }
+            });
+        }
 
-        double percentPerDay;
-        if (mScheduleMode) {
-            String folders[] = mSchedule.split(",");
-            percentPerDay = 100.0 / folders.length;
-        } else {
-            percentPerDay = 100.0 / mWDays.split(",").length;
+        int dayIndex = 0;
+        for (DayRows dayRows : CalendarLayoutPool.invokeAll(tasks, parallel)) {
+            ZApptDayLayoutBean day = days.get(dayIndex++);
+            long firstRange = day.getStartTime() + mMsecsDayStart;
+            if (dayRows.combined != null) {
+                for (int rowNum = 0; rowNum < dayRows.combined.size(); rowNum++) {
+                    List<ZApptCellLayoutBean> cells = dayRows.combined.get(rowNum);
+                    if (rowNum < rows.size()) {
+                        rows.get(rowNum).getCells().addAll(cells);
+                    } else {
+                        rows.add(new ZApptRowLayoutBean(cells, rowNum, firstRange + rowNum * MSECS_INCR));
+                    }
+                }
+            }
+            List<ZApptRowLayoutBean> rowsForOneDay = new ArrayList<ZApptRowLayoutBean>(dayRows.separate.size());
+            for (int rowNum = 0; rowNum < dayRows.separate.size(); rowNum++) {
+                rowsForOneDay.add(new ZApptRowLayoutBean(dayRows.separate.get(rowNum), rowNum, firstRange + rowNum * MSECS_INCR));
+            }
+            rowsSeperatedByDays.add(rowsForOneDay);
         }
+    }
 
-        for (ZApptDayLayoutBean day : days) {
-            if(!workDays.get((day.getDay() + (int)mWeekStart) %7))
-                   continue;
-            int numCols = day.getColumns().size();
-            double percentPerCol = percentPerDay/numCols;
-            // need new one for each day
-            HashMap<ZAppointmentHit, ZApptCellLayoutBean> mDoneAppts = new HashMap<ZAppointmentHit, ZApptCellLayoutBean>();
-            int rowNum = 0;
-            long lastRange = day.getStartTime() + mMsecsDayEnd;
-            for (long msecsRangeStart = day.getStartTime()+ mMsecsDayStart; msecsRangeStart < lastRange; msecsRangeStart += MSECS_INCR) {
-                long msecsRangeEnd = msecsRangeStart + MSECS_INCR;
-
-                List<ZApptCellLayoutBean> cells =
-                        rowNum < rows.size() ? rows.get(rowNum).getCells() : new ArrayList<ZApptCellLayoutBean>();
-
-                for (int colIndex = 0; colIndex < numCols; colIndex++) {
-                    List<ZAppointmentHit> rawColumn = day.getColumns().get(colIndex);
-                    ZAppointmentHit match = null;
-                    for (ZAppointmentHit a : rawColumn) {
-                        if (a.isInRange(msecsRangeStart, msecsRangeEnd)) {
-                            match = a;
-                            break;
-                        }
+    /**
+     * Returns the cells of each row of the given day.
+     */
+    private List<List<ZApptCellLayoutBean>> computeDayCells(ZApptDayLayoutBean day, double percentPerDay) {
+        List<List<ZApptCellLayoutBean>> rows = new ArrayList<List<ZApptCellLayoutBean>>();
+        int numCols = day.getColumns().size();
+        double percentPerCol = percentPerDay/numCols;
+        HashMap<ZAppointmentHit, ZApptCellLayoutBean> mDoneAppts = new HashMap<ZAppointmentHit, ZApptCellLayoutBean>();
+        long lastRange = day.getStartTime() + mMsecsDayEnd;
+        for (long msecsRangeStart = day.getStartTime()+ mMsecsDayStart; msecsRangeStart < lastRange; msecsRangeStart += MSECS_INCR) {
+            long msecsRangeEnd = msecsRangeStart + MSECS_INCR;
+
+            List<ZApptCellLayoutBean> cells = new ArrayList<ZApptCellLayoutBean>();
+
+            for (int colIndex = 0; colIndex < numCols; colIndex++) {
+                List<ZAppointmentHit> rawColumn = day.getColumns().get(colIndex);
+                ZAppointmentHit match = null;
+                for (ZAppointmentHit a : rawColumn) {
+                    if (a.isInRange(msecsRangeStart, msecsRangeEnd)) {
+                        match = a;
+                        break;
                     }
-                    ZApptCellLayoutBean cell = new ZApptCellLayoutBean(day);
-                    if (match != null) {
-                        cell.setAppt(match);
-                        ZApptCellLayoutBean existingCol = mDoneAppts.get(match);
-                        if (existingCol == null) {
-                            cell.setIsFirst(true);
-                            mDoneAppts.put(match, cell);
-                            cell.setRowSpan(computeRowSpan(match, MSECS_INCR, day.getStartTime()+ mMsecsDayStart, day.getStartTime()+ mMsecsDayEnd));
-                            cell.setColSpan(computeColSpan(match.getStartTime(), match.getEndTime(), day.getColumns(), colIndex+1, MSECS_INCR));
-                        } else {
-                            cell.setColSpan(existingCol.getColSpan());
-                        }
+                }
+                ZApptCellLayoutBean cell = new ZApptCellLayoutBean(day);
+                /**
+                 * If an appointment is found for this row, create a cell and add to cells.
+                 */
+                if (match != null) {
+                    cell.setAppt(match);
+                    ZApptCellLayoutBean existingCol = mDoneAppts.get(match);
+                    if (existingCol == null) {
+                        cell.setIsFirst(true);
+                        mDoneAppts.put(match, cell);
+                        cell.setRowSpan(computeRowSpan(match, MSECS_INCR, day.getStartTime()+ mMsecsDayStart, day.getStartTime()+ mMsecsDayEnd));
+                        cell.setColSpan(computeColSpan(match.getStartTime(), match.getEndTime(), day.getColumns(), colIndex+1, MSECS_INCR));
                     } else {
-                        cell.setRowSpan(1);
-                        cell.setColSpan(computeColSpan(msecsRangeStart, msecsRangeEnd, day.getColumns(), colIndex+1, MSECS_INCR));
+                        cell.setColSpan(existingCol.getColSpan());
                     }
-                    cell.setWidth((int)(percentPerCol*cell.getColSpan()));
-                    cells.add(cell);
-                    if (cell.getColSpan() > 1)
-                        colIndex += cell.getColSpan() - 1;
+                } else {
+                    cell.setRowSpan(1);
+                    cell.setColSpan(computeColSpan(msecsRangeStart, msecsRangeEnd, day.getColumns(), colIndex+1, MSECS_INCR));
                 }
-
-                if (rowNum >= rows.size())
-                    rows.add(new ZApptRowLayoutBean(cells, rowNum, msecsRangeStart));
-                rowNum++;
+                cell.setWidth((int)(percentPerCol*cell.getColSpan()));
+                cells.add(cell);
+                if (cell.getColSpan() > 1)
+                    colIndex += cell.getColSpan() - 1;
             }
+            rows.add(cells);
         }
         return rows;
     }
 
     /*
      *  @function - computeAllDayRowsSeperatedByDays
-     *  @param - Accepts an array of days (ZApptDayLayoutBean)
+     *  @param - Accepts an array of days (ZApptDayLayoutBean) and the "AllDay" appointments
+     *           within the input date range (mStart, mEnd)
      *  @param - Returns a List of "AllDay" appointments for the given number of days.
      *           This function computes an array of AllDay appointments for the input days array.
      *
      */
-    private List<List<ZApptRowLayoutBean>> computeAllDayRowsSeperatedByDays(List<ZApptDayLayoutBean> days) {
-        /**
-         * Get all "AllDay" appointments within the input date range (mstart, mEnd)
-         */
-        ZApptAllDayLayoutBean allday = new ZApptAllDayLayoutBean(mAppointments.getAppointments(), mStart, mEnd, mNumDays, mScheduleMode, mIsShowDeclined);
-
+    private List<List<ZApptRowLayoutBean>> computeAllDayRowsSeperatedByDays(List<ZApptDayLayoutBean> days, ZApptAllDayLayoutBean allday) {
         double percentPerDay = 100.0;
         List<List<ZApptRowLayoutBean>> allDayRowsofRows = new ArrayList<List<ZApptRowLayoutBean>>();
 
@@ -332,76 +390,6 @@ public class ApptMultiDayLayoutTag extends ZimbraSimpleTag {
         return allDayRowsofRows;
     }
 
-    /*
-     *  @function - computeRowsSeperatedByDays
-     *  @param - Accepts an array of days (ZApptDayLayoutBean)
-     *  @param - Returns a List of appointments for the given number of days.
-     *           This function computes an array of appointments for the input days array.
-     *
-     */
-    private List<List<ZApptRowLayoutBean>> computeRowsSeperatedByDays(List<ZApptDayLayoutBean> days) {
-
-        List<List<ZApptRowLayoutBean>> rowsForAllDays = new ArrayList<List<ZApptRowLayoutBean>>();
-
-        double percentPerDay = 100.0;
-
-        for (ZApptDayLayoutBean day : days) {
-            List<ZApptRowLayoutBean> rowsForOneDay = new ArrayList<ZApptRowLayoutBean>();
-            int numCols = day.getColumns().size();
-            double percentPerCol = percentPerDay/numCols;
-            // need new one for each day
-            HashMap<ZAppointmentHit, ZApptCellLayoutBean> mDoneAppts = new HashMap<ZAppointmentHit, ZApptCellLayoutBean>();
-            int rowNum = 0;
-            long lastRange = day.getStartTime() + mMsecsDayEnd;
-            for (long msecsRangeStart = day.getStartTime()+ mMsecsDayStart; msecsRangeStart < lastRange; msecsRangeStart += MSECS_INCR) {
-                long msecsRangeEnd = msecsRangeStart + MSECS_INCR;
-
-                List<ZApptCellLayoutBean> cells =
-                        rowNum < rowsForOneDay.size() ? rowsForOneDay.get(rowNum).getCells() : new ArrayList<ZApptCellLayoutBean>();
-
-                for (int colIndex = 0; colIndex < numCols; colIndex++) {
-                    List<ZAppointmentHit> rawColumn = day.getColumns().get(colIndex);
-                    ZAppointmentHit match = null;
-                    for (ZAppointmentHit a : rawColumn) {
-                        if (a.isInRange(msecsRangeStart, msecsRangeEnd)) {
-                            match = a;
-                            break;
-                        }
-                    }
-                    ZApptCellLayoutBean cell = new ZApptCellLayoutBean(day);
-                    /**
-                     * If an appointment is found for this row, create a cell and add to cells.
-                     */
-                    if (match != null) {
-                        cell.setAppt(match);
-                        ZApptCellLayoutBean existingCol = mDoneAppts.get(match);
-                        if (existingCol == null) {
-                            cell.setIsFirst(true);
-                            mDoneAppts.put(match, cell);
-                            cell.setRowSpan(computeRowSpan(match, MSECS_INCR, day.getStartTime()+ mMsecsDayStart, day.getStartTime()+ mMsecsDayEnd));
-                            cell.setColSpan(computeColSpan(match.getStartTime(), match.getEndTime(), day.getColumns(), colIndex+1, MSECS_INCR));
-                        } else {
-                            cell.setColSpan(existingCol.getColSpan());
-                        }
-                    } else {
-                        cell.setRowSpan(1);
-                        cell.setColSpan(computeColSpan(msecsRangeStart, msecsRangeEnd, day.getColumns(), colIndex+1, MSECS_INCR));
-                    }
-                    cell.setWidth((int)(percentPerCol*cell.getColSpan()));
-                    cells.add(cell);
-                    if (cell.getColSpan() > 1)
-                        colIndex += cell.getColSpan() - 1;
-                }
-
-                if (rowNum >= rowsForOneDay.size())
-                    rowsForOneDay.add(new ZApptRowLayoutBean(cells, rowNum, msecsRangeStart));
-                rowNum++;
-            }
-            rowsForAllDays.add(rowsForOneDay);
-        }
-        return rowsForAllDays;
-    }
-
     private void computeDayStartEnd(List<ZApptDayLayoutBean> days) {
         long hourStart = (mHourStart == -1 || mHourStart > mHourEnd) ? DEFAULT_HOUR_START : mHourStart;
         long hourEnd = mHourEnd == -1 || mHourEnd < hourStart ? DEFAULT_HOUR_END : mHourEnd;
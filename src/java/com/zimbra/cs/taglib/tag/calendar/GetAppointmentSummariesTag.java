@@ -17,18 +17,21 @@
 package com.zimbra.cs.taglib.tag.calendar;
 
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.DateUtil;
+import com.zimbra.cs.taglib.ZJspSession;
+import com.zimbra.cs.taglib.bean.ApptSummaryFanOut;
+import com.zimbra.cs.taglib.bean.ApptSummaryRangeCache;
 import com.zimbra.cs.taglib.bean.ZApptSummariesBean;
 import com.zimbra.cs.taglib.bean.ZMailboxBean;
 import com.zimbra.cs.taglib.tag.ZimbraSimpleTag;
 import com.zimbra.client.ZAppointmentHit;
 import com.zimbra.client.ZMailbox;
-import com.zimbra.client.ZMailbox.ZApptSummaryResult;
-import com.zimbra.client.ZSearchParams;
 
 import javax.servlet.jsp.JspContext;
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.PageContext;
 import javax.servlet.jsp.JspTagException;
+import javax.servlet.jsp.jstl.core.Config;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -36,6 +39,12 @@ import java.util.TimeZone;
 
 public class GetAppointmentSummariesTag extends ZimbraSimpleTag {
 
+    public static final String CONFIG_ZIMBRA_CALENDAR_SUMMARIES_CONCURRENT = "zimbra.calendar.summaries.concurrent";
+    public static final String CONFIG_ZIMBRA_CALENDAR_SUMMARIES_TIMEOUT = "zimbra.calendar.summaries.timeout";
+
+    private static final String DEFAULT_TIMEOUT_STR = "15s";
+    private static final long DEFAULT_TIMEOUT = 15*1000;
+
     private String mVar;
     private String mVarException;
     private String mQuery;
@@ -64,26 +73,13 @@ public class GetAppointmentSummariesTag extends ZimbraSimpleTag {
             if (mFolderId == null || mFolderId.length() == 0) {
                 // if non are checked, return no appointments (to match behavior of ajax client
                 appts = new ArrayList<ZAppointmentHit>();
-            } else if (mFolderId.indexOf(',') == -1) {
-                List<ZApptSummaryResult> result = mbox.getApptSummaries(mQuery, mStart, mEnd, new String[] {mFolderId}, mTimeZone, ZSearchParams.TYPE_APPOINTMENT);
-                //appts = mbox.getApptSummaries(mStart, mEnd, mFolderId);
-                if (result.size() != 1) {
-                    appts = new ArrayList<ZAppointmentHit>();
-                    for (ZApptSummaryResult r : result) {
-                        appts.addAll(r.getAppointments());
-                    }
-                } else {
-                    ZApptSummaryResult asr = result.get(0);
-                    appts = asr.getAppointments();
-                }
             } else {
-                appts = new ArrayList<ZAppointmentHit>();
-                List<ZApptSummaryResult> result = mbox.getApptSummaries(mQuery, mStart, mEnd, mFolderId.split(","), mTimeZone, ZSearchParams.TYPE_APPOINTMENT);
-                for (ZApptSummaryResult sum : result) {
-                    appts.addAll(sum.getAppointments());
-                }
+                String[] folderIds = mFolderId.split(",");
+                ApptSummaryFanOut fanOut = folderIds.length > 1 ? getFanOut((PageContext) jctxt, mbox) : null;
+                // only the parts of the range this session hasn't seen yet are fetched
+                appts = ApptSummaryRangeCache.getInstance(mbox).getApptSummaries(mbox, mQuery, mStart, mEnd, folderIds, mTimeZone, fanOut);
             }
-            jctxt.setAttribute(mVar, new ZApptSummariesBean(appts),  PageContext.PAGE_SCOPE);
+            jctxt.setAttribute(mVar, new ZApptSummariesBean(appts, true),  PageContext.PAGE_SCOPE);
 
         } catch (ServiceException e) {
             if (mVarException != null) {
@@ -94,4 +90,20 @@ public class GetAppointmentSummariesTag extends ZimbraSimpleTag {
             }
         }
     }
+
+    /**
+     * Returns the fan-out to fetch the folders of other accounts with
+     * concurrently, or null if the <code>zimbra.calendar.summaries.concurrent</code>
+     * context parameter isn't set.
+     */
+    private static ApptSummaryFanOut getFanOut(PageContext pageContext, ZMailbox mbox) throws ServiceException {
+        String concurrent = (String) Config.find(pageContext, CONFIG_ZIMBRA_CALENDAR_SUMMARIES_CONCURRENT);
+        if (concurrent == null || !Boolean.parseBoolean(concurrent.trim())) {
+            return null;
+        }
+        String timeout = (String) Config.find(pageContext, CONFIG_ZIMBRA_CALENDAR_SUMMARIES_TIMEOUT);
+        return new ApptSummaryFanOut(ZJspSession.getSoapURL(pageContext), mbox.getAuthToken(), mbox.getCsrfToken(),
+                ZJspSession.getRemoteAddr(pageContext),
+                DateUtil.getTimeInterval(timeout != null ? timeout : DEFAULT_TIMEOUT_STR, DEFAULT_TIMEOUT));
+    }
 }
@@ -0,0 +1,408 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.taglib.tag.i18n;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.PropertyResourceBundle;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletContext;
+import javax.servlet.jsp.PageContext;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Application-wide cache of message bundles with skin overrides merged in.
+ * <p>
+ * Each (basename, skin, locale) is resolved once: the base and skin
+ * <code>.properties</code> files of every candidate locale are parsed and
+ * flattened into a single immutable bundle that is shared by all requests.
+ * Skin changes are pushed in by the {@link SkinRegistry}; the other source
+ * files are checked for modification at most every {@link #CHECK_INTERVAL}
+ * milliseconds.
+ * <p>
+ * Bundles that have no properties files at all (e.g. class-based bundles) are
+ * loaded through {@link I18nUtil.ResourceLoader} as before.
+ */
+public class BundleCache {
+
+	//
+	// Constants
+	//
+
+	public static final long CHECK_INTERVAL = 30000;
+
+	private static final String ATTR_CACHE = BundleCache.class.getName();
+	private static final int MAX_SIZE = 2000;
+
+	private static final Pattern RE_SKIN_PREFIX = Pattern.compile("^/skins/([^/]+)");
+
+	private static final ResourceBundle.Control CONTROL =
+		ResourceBundle.Control.getControl(ResourceBundle.Control.FORMAT_PROPERTIES);
+
+	//
+	// Data
+	//
+
+	private final ServletContext mContext;
+	private final Cache<String,Entry> mBundles = CacheBuilder.newBuilder().maximumSize(MAX_SIZE).build();
+
+	//
+	// Constructors
+	//
+
+	private BundleCache(ServletContext context) {
+		mContext = context;
+	}
+
+	//
+	// Static functions
+	//
+
+	public static BundleCache getInstance(ServletContext context) {
+		BundleCache cache = (BundleCache)context.getAttribute(ATTR_CACHE);
+		if (cache == null) {
+			synchronized (BundleCache.class) {
+				cache = (BundleCache)context.getAttribute(ATTR_CACHE);
+				if (cache == null) {
+					cache = new BundleCache(context);
+					context.setAttribute(ATTR_CACHE, cache);
+				}
+			}
+		}
+		return cache;
+	}
+
+	//
+	// Public methods
+	//
+
+	/**
+	 * @param basename the bundle basename, optionally prefixed with
+	 *                 "/skins/<i>skin</i>" (see {@link I18nUtil#makeBasename})
+	 * @throws MissingResourceException if the bundle can't be found
+	 */
+	public ResourceBundle getBundle(final PageContext pageContext, final String basename, final Locale locale) {
+		final Source source = new Source(pageContext, basename);
+		String key = makeKey(source.skin, source.basename, locale);
+
+		Entry entry = mBundles.getIfPresent(key);
+		if (entry != null && !entry.isStale()) {
+			return entry.bundle;
+		}
+		if (entry != null) {
+			ZimbraLog.webclient.debug("reloading bundle "+key);
+			mBundles.invalidate(key);
+		}
+		try {
+			entry = mBundles.get(key, new Callable<Entry>() {
+				public Entry call() {
+					return load(pageContext, basename, source, locale);
+				}
+			});
+		}
+		catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		}
+		catch (UncheckedExecutionException e) {
+			throw unwrap(e.getCause());
+		}
+		return entry.bundle;
+	}
+
+	/**
+	 * Returns the skin whose overrides are merged into the bundle for the
+	 * given basename, or null if it has none.
+	 */
+	public static String getSkin(PageContext pageContext, String basename) {
+		return new Source(pageContext, basename).skin;
+	}
+
+	/** Removes the cached bundle so that it is reloaded on next access. */
+	public void remove(PageContext pageContext, String basename, Locale locale) {
+		Source source = new Source(pageContext, basename);
+		mBundles.invalidate(makeKey(source.skin, source.basename, locale));
+	}
+
+	/** Removes all cached bundles that have overrides from the given skin. */
+	public void removeSkin(String skin) {
+		String prefix = skin+"|";
+		Iterator<String> iter = mBundles.asMap().keySet().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().startsWith(prefix)) {
+				iter.remove();
+			}
+		}
+	}
+
+	public void clear() {
+		mBundles.invalidateAll();
+	}
+
+	//
+	// Private methods
+	//
+
+	private static String makeKey(String skin, String basename, Locale locale) {
+		return skin+"|"+basename+"|"+locale;
+	}
+
+	private static RuntimeException unwrap(Throwable t) {
+		if (t instanceof RuntimeException) {
+			return (RuntimeException)t;
+		}
+		return new IllegalStateException(t);
+	}
+
+	private Entry load(PageContext pageContext, String basename, Source source, Locale locale) {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		List<Locale> candidates = CONTROL.getCandidateLocales(source.basename, locale);
+		Entry entry = merge(loader, source, candidates);
+
+		// fall back to the default locale, as ResourceBundle.getBundle does
+		if (entry != null && Locale.ROOT.equals(entry.bundle.getLocale()) && candidates.size() > 1) {
+			Locale fallback = CONTROL.getFallbackLocale(source.basename, locale);
+			if (fallback != null) {
+				Entry fallbackEntry = merge(loader, source, CONTROL.getCandidateLocales(source.basename, fallback));
+				if (fallbackEntry != null && !Locale.ROOT.equals(fallbackEntry.bundle.getLocale())) {
+					entry = fallbackEntry;
+				}
+			}
+		}
+
+		if (entry == null) {
+			entry = new Entry(loadWithResourceLoader(pageContext, loader, basename, locale), Collections.<File>emptyList());
+		}
+		return entry;
+	}
+
+	/**
+	 * Parses the properties files of the candidate locales, base file before
+	 * skin override and least specific locale first, into one bundle.
+	 *
+	 * @return null if no properties file exists for any candidate
+	 */
+	private Entry merge(ClassLoader loader, Source source, List<Locale> candidates) {
+		Map<String,Object> values = new HashMap<String,Object>();
+		List<File> files = new ArrayList<File>();
+		Locale found = null;
+
+		SkinRegistry registry = source.skin != null ? SkinRegistry.getInstance(mContext) : null;
+		for (int i = candidates.size() - 1; i >= 0; i--) {
+			Locale candidate = candidates.get(i);
+			String resource = CONTROL.toResourceName(CONTROL.toBundleName(source.basename, candidate), "properties");
+			boolean exists = false;
+
+			URL url = loader.getResource(resource);
+			if (url != null) {
+				exists = load(url, values);
+				File file = toFile(url);
+				if (file != null) {
+					files.add(file);
+				}
+			}
+			if (registry != null) {
+				File file = registry.getResourceFile(source.skin, resource);
+				if (file != null) {
+					try {
+						exists |= load(file.toURI().toURL(), values);
+						files.add(file);
+					}
+					catch (IOException e) {
+						ZimbraLog.webclient.debug("unable to load skin override "+file, e);
+					}
+				}
+			}
+			if (exists) {
+				found = candidate;
+			}
+		}
+
+		return found != null ? new Entry(new MapBundle(values, found), files) : null;
+	}
+
+	private static boolean load(URL url, Map<String,Object> values) {
+		try {
+			URLConnection connection = url.openConnection();
+			connection.setUseCaches(false);
+			InputStream in = connection.getInputStream();
+			try {
+				PropertyResourceBundle bundle = new PropertyResourceBundle(in);
+				for (String key : bundle.keySet()) {
+					values.put(key, bundle.getObject(key));
+				}
+				return true;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			ZimbraLog.webclient.debug("unable to load bundle resource "+url, e);
+			return false;
+		}
+	}
+
+	private static File toFile(URL url) {
+		if (!"file".equals(url.getProtocol())) {
+			return null;
+		}
+		try {
+			return new File(url.toURI());
+		}
+		catch (URISyntaxException e) {
+			return null;
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static ResourceBundle loadWithResourceLoader(PageContext pageContext, ClassLoader parent,
+	                                                     String basename, Locale locale) {
+		/**
+		 * bug 66698, 66765: The context ClassLoader is overridden so that we can
+		 * transparently merge skin message files into the default ones allowing
+		 * skins to independently override messages.
+		 */
+		Thread thread = Thread.currentThread();
+		ClassLoader loader = new I18nUtil.ResourceLoader(parent, pageContext);
+		thread.setContextClassLoader(loader);
+		try {
+			return ResourceBundle.getBundle(basename, locale, loader);
+		}
+		finally {
+			thread.setContextClassLoader(parent);
+		}
+	}
+
+	//
+	// Classes
+	//
+
+	/** Basename with any "/skins/<i>skin</i>" prefix split off. */
+	private static class Source {
+		final String skin;
+		final String basename;
+
+		Source(PageContext pageContext, String basename) {
+			String skin = null;
+			Matcher matcher = RE_SKIN_PREFIX.matcher(basename);
+			if (matcher.find()) {
+				skin = matcher.group(1);
+				basename = basename.substring(matcher.end());
+			}
+			// only message and key files have skin overrides
+			if (!basename.startsWith("/messages/") && !basename.startsWith("/keys/")) {
+				skin = null;
+			}
+			else if (skin == null) {
+				skin = (String)pageContext.getAttribute(I18nUtil.ResourceLoader.A_SKIN);
+				if (skin == null) {
+					skin = I18nUtil.ResourceLoader.resolveSkin(pageContext, pageContext.getRequest());
+				}
+			}
+			this.skin = skin;
+			this.basename = basename;
+		}
+	}
+
+	private static class Entry {
+		final ResourceBundle bundle;
+		final List<File> files;
+		final long[] modified;
+		volatile long checked;
+
+		Entry(ResourceBundle bundle, List<File> files) {
+			this.bundle = bundle;
+			this.files = files;
+			this.modified = new long[files.size()];
+			for (int i = 0; i < modified.length; i++) {
+				modified[i] = files.get(i).lastModified();
+			}
+			this.checked = System.currentTimeMillis();
+		}
+
+		boolean isStale() {
+			long now = System.currentTimeMillis();
+			if (files.isEmpty() || now - checked < CHECK_INTERVAL) {
+				return false;
+			}
+			checked = now;
+			for (int i = 0; i < modified.length; i++) {
+				if (files.get(i).lastModified() != modified[i]) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/** Immutable bundle backed by the merged message map. */
+	private static class MapBundle extends ResourceBundle {
+		private final Map<String,Object> mValues;
+		private final Locale mLocale;
+
+		MapBundle(Map<String,Object> values, Locale locale) {
+			mValues = Collections.unmodifiableMap(values);
+			mLocale = locale;
+		}
+
+		@Override
+		public Locale getLocale() {
+			return mLocale;
+		}
+
+		@Override
+		protected Object handleGetObject(String key) {
+			return mValues.get(key);
+		}
+
+		@Override
+		protected Set<String> handleKeySet() {
+			return mValues.keySet();
+		}
+
+		@Override
+		public Enumeration<String> getKeys() {
+			return Collections.enumeration(mValues.keySet());
+		}
+	}
+
+} // class BundleCache
@@ -0,0 +1,34 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.taglib.tag.i18n;
+
+import java.io.IOException;
+
+import javax.servlet.jsp.JspException;
+
+import com.zimbra.cs.taglib.tag.ZimbraSimpleTag;
+
+/**
+ * Drops the available locales cached by {@link GetValidLocaleTag}, e.g. after
+ * locales have been installed or restricted.
+ */
+public class ClearValidLocaleCacheTag extends ZimbraSimpleTag {
+
+    public void doTag() throws JspException, IOException {
+        GetValidLocaleTag.clearCache();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.taglib.tag.i18n;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Application-wide cache of date formats, keyed by pattern or style and locale.
+ * <p>
+ * Creating a DateFormat parses the pattern and loads the locale's symbols, which is
+ * far more expensive than copying an existing one. The cached instances are never
+ * used for formatting; callers get a clone, set to the requested time zone, that
+ * they are free to modify.
+ */
+public class DateFormatCache {
+
+	//
+	// Constants
+	//
+
+	private static final int MAX_SIZE = 2000;
+
+	//
+	// Data
+	//
+
+	private static final Cache<String,DateFormat> sPrototypes =
+		CacheBuilder.newBuilder().maximumSize(MAX_SIZE).build();
+
+	//
+	// Static functions
+	//
+
+	/**
+	 * @param locale the locale, or null for the default format locale
+	 * @param timeZone the time zone, or null for the default time zone
+	 */
+	public static DateFormat getPatternInstance(String pattern, Locale locale, TimeZone timeZone) {
+		if (locale == null) locale = Locale.getDefault(Locale.Category.FORMAT);
+		String key = "p|" + locale + "|" + pattern;
+		DateFormat prototype = sPrototypes.getIfPresent(key);
+		if (prototype == null) {
+			prototype = new SimpleDateFormat(pattern, locale);
+			sPrototypes.put(key, prototype);
+		}
+		return copy(prototype, timeZone);
+	}
+
+	public static DateFormat getDateInstance(int style, Locale locale, TimeZone timeZone) {
+		return getStyleInstance(style, -1, locale, timeZone);
+	}
+
+	public static DateFormat getTimeInstance(int style, Locale locale, TimeZone timeZone) {
+		return getStyleInstance(-1, style, locale, timeZone);
+	}
+
+	public static DateFormat getDateTimeInstance(int dateStyle, int timeStyle, Locale locale, TimeZone timeZone) {
+		return getStyleInstance(dateStyle, timeStyle, locale, timeZone);
+	}
+
+	//
+	// Private functions
+	//
+
+	private static DateFormat getStyleInstance(int dateStyle, int timeStyle, Locale locale, TimeZone timeZone) {
+		if (locale == null) locale = Locale.getDefault(Locale.Category.FORMAT);
+		String key = "s|" + locale + "|" + dateStyle + "|" + timeStyle;
+		DateFormat prototype = sPrototypes.getIfPresent(key);
+		if (prototype == null) {
+			if (timeStyle == -1) {
+				prototype = DateFormat.getDateInstance(dateStyle, locale);
+			}
+			else if (dateStyle == -1) {
+				prototype = DateFormat.getTimeInstance(timeStyle, locale);
+			}
+			else {
+				prototype = DateFormat.getDateTimeInstance(dateStyle, timeStyle, locale);
+			}
+			sPrototypes.put(key, prototype);
+		}
+		return copy(prototype, timeZone);
+	}
+
+	private static DateFormat copy(DateFormat prototype, TimeZone timeZone) {
+		DateFormat format = (DateFormat)prototype.clone();
+		if (timeZone != null) {
+			format.setTimeZone(timeZone);
+		}
+		return format;
+	}
+
+} // class DateFormatCache
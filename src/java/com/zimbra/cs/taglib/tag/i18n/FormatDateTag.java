@@ -88,18 +88,18 @@ public class FormatDateTag extends SimpleTagSupport  {
 
 		// create formatter
 		Locale locale = I18nUtil.findLocale(pageContext);
-		DateFormat formatter = this.pattern != null ? new SimpleDateFormat(this.pattern, locale) : null;
+		DateFormat formatter = this.pattern != null ? DateFormatCache.getPatternInstance(this.pattern, locale, null) : null;
 		if (formatter == null) {
 			int dateStyle = I18nUtil.getStyle(this.dateStyle);
 			int timeStyle = I18nUtil.getStyle(this.timeStyle);
 			if (I18nUtil.TYPE_DATE.equalsIgnoreCase(this.type)) {
-				formatter = DateFormat.getDateInstance(dateStyle, locale);
+				formatter = DateFormatCache.getDateInstance(dateStyle, locale, null);
 			}
 			else if (I18nUtil.TYPE_TIME.equalsIgnoreCase(this.type)) {
-				formatter = DateFormat.getTimeInstance(timeStyle, locale);
+				formatter = DateFormatCache.getTimeInstance(timeStyle, locale, null);
 			}
 			else {
-				formatter = DateFormat.getDateTimeInstance(dateStyle, timeStyle, locale);
+				formatter = DateFormatCache.getDateTimeInstance(dateStyle, timeStyle, locale, null);
 			}
 		}
 
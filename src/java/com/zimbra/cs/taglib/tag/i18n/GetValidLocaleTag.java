@@ -18,25 +18,42 @@ package com.zimbra.cs.taglib.tag.i18n;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.jsp.JspContext;
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.JspTagException;
 import javax.servlet.jsp.PageContext;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.zimbra.common.auth.ZAuthToken;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.AccountConstants;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.soap.Element.XMLElement;
 import com.zimbra.common.soap.SoapHttpTransport;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.AuthTokenException;
 import com.zimbra.cs.taglib.ZJspSession;
 import com.zimbra.cs.taglib.tag.ZimbraSimpleTag;
 
 public class GetValidLocaleTag extends ZimbraSimpleTag {
 
+	/** Available locales rarely change; reload them once an hour. */
+	private static final long INDEX_TTL_MINUTES = 60;
+
+	/** Locale indexes by account id, since the available locales may be restricted per account. */
+	private static final Cache<String,LocaleIndex> sIndexes = CacheBuilder.newBuilder()
+		.maximumSize(10000)
+		.expireAfterWrite(INDEX_TTL_MINUTES, TimeUnit.MINUTES)
+		.build();
+
 	private String mVar;
     private String mLocale;
     private ZAuthToken mAuthToken;
@@ -47,6 +64,13 @@ public class GetValidLocaleTag extends ZimbraSimpleTag {
     public void setAuthtoken(ZAuthToken authToken) { this.mAuthToken = authToken; }
     public void setCsrftoken(String csrfToken) { this.mCsrfToken = csrfToken; }
 
+    /**
+     * Drops all cached locale indexes so that they are reloaded on next use.
+     * Called when skins change and by {@link ClearValidLocaleCacheTag}.
+     */
+    public static void clearCache() {
+        sIndexes.invalidateAll();
+    }
 
     // simple tag methods
 
@@ -56,9 +80,47 @@ public class GetValidLocaleTag extends ZimbraSimpleTag {
             ctxt.setAttribute(mVar, false,  PageContext.REQUEST_SCOPE);
             return;
         }
+        try {
+            ctxt.setAttribute(mVar, getLocaleIndex((PageContext)ctxt).isValid(this.mLocale),  PageContext.REQUEST_SCOPE);
+        }
+        catch(ServiceException e) {
+            throw new JspTagException(e.getMessage(), e);   
+        }
+    }
+
+    private LocaleIndex getLocaleIndex(final PageContext ctxt) throws ServiceException {
+        String accountId = null;
+        if (mAuthToken != null) {
+            try {
+                accountId = ZJspSession.getAccountId(mAuthToken);
+            }
+            catch (AuthTokenException e) {
+                ZimbraLog.webclient.debug("not caching available locales for undecodable auth token", e);
+                return loadLocaleIndex(ctxt);
+            }
+        }
+        try {
+            return sIndexes.get(accountId != null ? accountId : "", new Callable<LocaleIndex>() {
+                public LocaleIndex call() throws ServiceException {
+                    return loadLocaleIndex(ctxt);
+                }
+            });
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException)e.getCause();
+            }
+            throw ServiceException.FAILURE("unable to get available locales", e.getCause());
+        }
+        catch (UncheckedExecutionException e) {
+            throw ServiceException.FAILURE("unable to get available locales", e.getCause());
+        }
+    }
+
+    private LocaleIndex loadLocaleIndex(PageContext ctxt) throws ServiceException {
         SoapHttpTransport transport = null;
         try {
-            String soapUri = ZJspSession.getSoapURL((PageContext)ctxt);
+            String soapUri = ZJspSession.getSoapURL(ctxt);
         	transport = new SoapHttpTransport(soapUri);
      		transport.setAuthToken(mAuthToken);
      		transport.setCsrfToken(mCsrfToken);
@@ -70,23 +132,44 @@ public class GetValidLocaleTag extends ZimbraSimpleTag {
                 if (id != null)
                 	locales.add(id);
             }
-            Collections.sort(locales);
-            boolean isValid = false;
-            for(String s : locales) {
-                if (this.mLocale.toLowerCase().startsWith(s.toLowerCase())) {
-                    isValid = true;
-                    break;
-                }
-            }
-            ctxt.setAttribute(mVar, isValid,  PageContext.REQUEST_SCOPE);
+            return new LocaleIndex(locales);
         }
-        catch(ServiceException e) {
-            throw new JspTagException(e.getMessage(), e);   
+        catch (IOException e) {
+            throw ServiceException.FAILURE("unable to get available locales", e);
         } finally {
             if (transport != null)
                 transport.shutdown();
         }
     }
 
-}
+    /**
+     * Sorted, lower-cased locale ids. A locale is valid if one of the ids is a
+     * prefix of it, so only its own prefixes need to be looked up.
+     */
+    static class LocaleIndex {
+        private final String[] mIds;
+
+        LocaleIndex(List<String> locales) {
+            String[] ids = new String[locales.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = locales.get(i).toLowerCase();
+            }
+            Arrays.sort(ids);
+            mIds = ids;
+        }
 
+        boolean isValid(String locale) {
+            if (mIds.length == 0) {
+                return false;
+            }
+            String id = locale.toLowerCase();
+            for (int end = 0; end <= id.length(); end++) {
+                if (Arrays.binarySearch(mIds, id.substring(0, end)) >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+}
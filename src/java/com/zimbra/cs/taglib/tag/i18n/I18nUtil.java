@@ -24,6 +24,7 @@ import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.regex.Pattern;
 import java.text.*;
 import javax.servlet.*;
 import javax.servlet.jsp.*;
@@ -108,12 +109,15 @@ public class I18nUtil {
 											  String var, int scope,
 											  String basename) {
 		// get message pattern
-		String pattern;
+		ResourceBundle bundle = null;
 		try {
-			ResourceBundle bundle = findBundle(pageContext, var, scope, basename);
-			pattern = bundle.getString(key);
+			bundle = findBundle(pageContext, var, scope, basename);
 		}
 		catch (Exception e) {
+			// ignore -- fall back to placeholder
+		}
+		String pattern = MessageFormatCache.getPattern(bundle, key);
+		if (pattern == null) {
 			pattern = "???"+key+"???";
 		}
 
@@ -122,15 +126,7 @@ public class I18nUtil {
 		if (args != null && args.length > 0) {
 			Locale locale = findLocale(pageContext);
 			TimeZone timeZone = findTimeZone(pageContext);
-
-			MessageFormat formatter = new MessageFormat(pattern, locale);
-			for (Format format : formatter.getFormatsByArgumentIndex()) {
-				if (format != null && format instanceof DateFormat) {
-					((DateFormat)format).setTimeZone(timeZone);
-				}
-			}
-
-			message = formatter.format(args);
+			message = MessageFormatCache.format(pattern, locale, timeZone, args);
 		}
 
 		return message;
@@ -272,8 +268,7 @@ public class I18nUtil {
 
 		// is the skin even present?
 		if (skin != null) {
-			File manifest = new File(pageContext.getServletContext().getRealPath("/skins/"+skin+"/"+MANIFEST));
-			if (!manifest.exists()) {
+			if (!SkinRegistry.getInstance(pageContext.getServletContext()).hasSkin(skin)) {
 				ZimbraLog.webclient.debug("selected skin ("+skin+") doesn't exist");
 				skin = null;
 			}
@@ -319,49 +314,17 @@ public class I18nUtil {
 		// first go directly to the main cache to find bundle
 		ResourceBundle bundle = null;
 		if (basename != null) {
-			String bundleKey = makeBundleKey(pageContext, basename);
-			bundle = (ResourceBundle)pageContext.getAttribute(bundleKey, PageContext.APPLICATION_SCOPE);
-			// bundle has never been loaded, so load it now
-			if (bundle == null) {
-				Locale locale = findLocale(pageContext);
-                /**
-                 * bug 66698, 66765: The context ClassLoader is overridden so that we can
-                 * transparently merge skin message files into the default ones allowing
-                 * skins to independently override messages. Moved overriding of ClassLoader
-                 * from JspServlet to here since the override needs to happen only in case
-                 * of <fmt:setBundle> to load the correct bundle resource specific to the
-                 * skin. There is no need to override class loader for all jsp pages.
-                 */
-                Thread thread = Thread.currentThread();
-				ClassLoader oLoader = thread.getContextClassLoader();
-                ClassLoader nLoader = oLoader;
-
-                //override context class loader
-                try {
-                    nLoader = new ResourceLoader(oLoader, pageContext);
-                    thread.setContextClassLoader(nLoader);
-                }catch(Exception e) {
-                    ZimbraLog.webclient.debug("FindBundle:error in overriding the class loader" + e);
-                    e.printStackTrace();
-                }
-				try {
-					bundle = ResourceBundle.getBundle(basename, locale, nLoader);
-					pageContext.setAttribute(bundleKey, bundle, PageContext.APPLICATION_SCOPE);
-				}
-				catch (MissingResourceException e) {
-					// ignore -- nothing we can do
-                    ZimbraLog.webclient.debug("MissingResourceException:" + e);
-                    e.printStackTrace();
-				}
-				catch (Exception e) {
-					// ignore -- nothing we can do
-                    ZimbraLog.webclient.debug("FindBundle:error in fetching the bundle resource" + e);
-                    e.printStackTrace();
-				}
-                finally {
-                    //restore old class loader
-                    thread.setContextClassLoader(oLoader);
-                }
+			Locale locale = findLocale(pageContext);
+			try {
+				bundle = BundleCache.getInstance(pageContext.getServletContext()).getBundle(pageContext, basename, locale);
+			}
+			catch (MissingResourceException e) {
+				// ignore -- nothing we can do
+				ZimbraLog.webclient.debug("MissingResourceException:" + e);
+			}
+			catch (Exception e) {
+				// ignore -- nothing we can do
+				ZimbraLog.webclient.debug("FindBundle:error in fetching the bundle resource" + e);
 			}
 		}
 
@@ -382,8 +345,7 @@ public class I18nUtil {
 	public static void clearBundle(PageContext pageContext,
 								   String var, int scope, String basename) {
 		if (basename != null) {
-			String bundleKey = makeBundleKey(pageContext, basename);
-			pageContext.removeAttribute(bundleKey, PageContext.APPLICATION_SCOPE);
+			BundleCache.getInstance(pageContext.getServletContext()).remove(pageContext, basename, findLocale(pageContext));
 		}
 		if (var != null) {
 			// Remove the var, if it exists, from the specified scope
@@ -398,6 +360,14 @@ public class I18nUtil {
 		}
 	}
 
+	/**
+	 * Removes the cached bundles that were loaded for the given skin so
+	 * that they are reloaded with the skin's current message files.
+	 */
+	public static void clearSkinBundles(ServletContext context, String skin) {
+		BundleCache.getInstance(context).removeSkin(skin);
+	}
+
 	//
 	// Constructors
 	//
@@ -422,6 +392,8 @@ public class I18nUtil {
     public static final String A_SKIN = "skin";
     protected static final String MANIFEST = "manifest.xml";
 
+    private static final Pattern RE_SKIN_PREFIX = Pattern.compile("^/skins/[^/]+");
+
 
     //
     // Constructors
@@ -437,6 +409,14 @@ public class I18nUtil {
     //
 
     String setSkin(ServletRequest request, ServletResponse response) {
+        return resolveSkin(pageContext, request);
+    }
+
+    /**
+     * Determines the skin for the request and stores it in the page
+     * context's "skin" attribute.
+     */
+    static String resolveSkin(PageContext pageContext, ServletRequest request) {
         // start with if skin is already set as an attribute
         String skin = (String)request.getAttribute(A_SKIN);
 //		ZimbraLog.webclient.debug("### request: "+skin);
@@ -459,7 +439,7 @@ public class I18nUtil {
         // user preference
         ZMailbox mailbox = null;
         if (skin == null) {
-            PageContext context = this.pageContext;
+            PageContext context = pageContext;
             if (ZJspSession.hasSession(context)) {
                 try {
                     ZJspSession zsession = ZJspSession.getSession(context);
@@ -501,8 +481,7 @@ public class I18nUtil {
 
         // is the skin even present?
         if (skin != null) {
-            File manifest = new File(this.pageContext.getServletContext().getRealPath("/skins/"+skin+"/"+MANIFEST));
-            if (!manifest.exists()) {
+            if (!SkinRegistry.getInstance(pageContext.getServletContext()).hasSkin(skin)) {
                 ZimbraLog.webclient.debug("selected skin ("+skin+") doesn't exist");
                 skin = null;
             }
@@ -510,7 +489,7 @@ public class I18nUtil {
 
         // fall back to default skin
         if (skin == null) {
-            skin = this.pageContext.getServletContext().getInitParameter(P_DEFAULT_SKIN);
+            skin = pageContext.getServletContext().getInitParameter(P_DEFAULT_SKIN);
 //			ZimbraLog.webclient.debug("### default: "+skin);
         }
 
@@ -530,7 +509,7 @@ public class I18nUtil {
         }
 
         // default resource
-        String basename = filename.replaceAll("^/skins/[^/]+", "");
+        String basename = RE_SKIN_PREFIX.matcher(filename).replaceFirst("");
         boolean isMsgOrKey = basename.startsWith("/messages/") || basename.startsWith("/keys/");
         if (!isMsgOrKey) {
             return super.getResource(filename);
@@ -544,10 +523,8 @@ public class I18nUtil {
             skin = this.setSkin(this.pageContext.getRequest(), this.pageContext.getResponse());
         }
 
-        ZimbraLog.webclient.debug("omega:" + (this.pageContext.getServletContext().getRealPath("/skins/"+skin+basename)));
-
-        File file = new File(this.pageContext.getServletContext().getRealPath("/skins/"+skin+basename));
-        if (file.exists()) {
+        File file = SkinRegistry.getInstance(this.pageContext.getServletContext()).getResourceFile(skin, basename);
+        if (file != null) {
             if (ZimbraLog.webclient.isDebugEnabled()) {
                 ZimbraLog.webclient.debug("  found message overrides for skin="+skin);
             }
@@ -568,7 +545,7 @@ public class I18nUtil {
         }
 
         // default resource
-        String basename = filename.replaceAll("^/skins/[^/]+", "");
+        String basename = RE_SKIN_PREFIX.matcher(filename).replaceFirst("");
         boolean isMsgOrKey = basename.startsWith("/messages/") || basename.startsWith("/keys/");
         if (!isMsgOrKey) {
             return super.getResourceAsStream(filename);
@@ -582,10 +559,8 @@ public class I18nUtil {
             skin = this.setSkin(this.pageContext.getRequest(), this.pageContext.getResponse());
         }
 
-        ZimbraLog.webclient.debug("omega:" + (this.pageContext.getServletContext().getRealPath("/skins/"+skin+basename)));
-
-        File file = new File(this.pageContext.getServletContext().getRealPath("/skins/"+skin+basename));
-        if (file.exists()) {
+        File file = SkinRegistry.getInstance(this.pageContext.getServletContext()).getResourceFile(skin, basename);
+        if (file != null) {
             if (ZimbraLog.webclient.isDebugEnabled()) {
                 ZimbraLog.webclient.debug("  found message overrides for skin="+skin);
             }
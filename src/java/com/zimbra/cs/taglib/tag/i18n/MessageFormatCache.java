@@ -0,0 +1,130 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.taglib.tag.i18n;
+
+import java.text.DateFormat;
+import java.text.Format;
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Application-wide cache of parsed message templates, keyed by pattern and locale.
+ * <p>
+ * Since a message's pattern is determined by its bundle, key and locale, keying
+ * on the pattern text itself also picks up reloaded bundles without any explicit
+ * invalidation. Keys that are missing from a bundle are remembered as well so
+ * that pages referencing them don't pay for a MissingResourceException on
+ * every render.
+ */
+public class MessageFormatCache {
+
+	//
+	// Constants
+	//
+
+	private static final int MAX_SIZE = 5000;
+
+	//
+	// Data
+	//
+
+	private static final Cache<String,MessageFormat> sPrototypes =
+		CacheBuilder.newBuilder().maximumSize(MAX_SIZE).build();
+
+	/** Missing keys per bundle; weak keys compare bundles by identity. */
+	private static final Cache<ResourceBundle,Set<String>> sMissingKeys =
+		CacheBuilder.newBuilder().weakKeys().build();
+
+	//
+	// Static functions
+	//
+
+	/**
+	 * Returns the message pattern for the given key, or null if the bundle
+	 * is null or doesn't contain the key.
+	 */
+	public static String getPattern(ResourceBundle bundle, String key) {
+		if (bundle != null && key != null) {
+			Set<String> missing = sMissingKeys.getIfPresent(bundle);
+			if (missing == null || !missing.contains(key)) {
+				try {
+					return bundle.getString(key);
+				}
+				catch (MissingResourceException e) {
+					if (missing == null) {
+						sMissingKeys.asMap().putIfAbsent(bundle, newSet());
+						missing = sMissingKeys.getIfPresent(bundle);
+					}
+					if (missing != null && missing.size() < MAX_SIZE) {
+						missing.add(key);
+					}
+				}
+				catch (Exception e) {
+					// ignore
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a formatter for the pattern whose date formats are set to the
+	 * given time zone. The returned instance belongs to the caller.
+	 *
+	 * @throws IllegalArgumentException if the pattern is invalid
+	 */
+	public static MessageFormat getInstance(String pattern, Locale locale, TimeZone timeZone) {
+		String key = locale + "|" + pattern;
+		MessageFormat prototype = sPrototypes.getIfPresent(key);
+		if (prototype == null) {
+			prototype = new MessageFormat(pattern, locale);
+			sPrototypes.put(key, prototype);
+		}
+		MessageFormat formatter = (MessageFormat)prototype.clone();
+		if (timeZone != null) {
+			for (Format format : formatter.getFormatsByArgumentIndex()) {
+				if (format instanceof DateFormat) {
+					((DateFormat)format).setTimeZone(timeZone);
+				}
+			}
+		}
+		return formatter;
+	}
+
+	/** Formats the pattern with the given arguments. */
+	public static String format(String pattern, Locale locale, TimeZone timeZone, Object[] args) {
+		return getInstance(pattern, locale, timeZone).format(args);
+	}
+
+	//
+	// Private functions
+	//
+
+	private static Set<String> newSet() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	}
+
+} // class MessageFormatCache
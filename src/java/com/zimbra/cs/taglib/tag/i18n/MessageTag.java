@@ -100,10 +100,8 @@ public class MessageTag extends BodyTagSupport {
 			}
 
 			// get message
-			try {
-				pattern = bundle.getString(prefix != null ? prefix+this.key : this.key);
-			}
-			catch (Exception e) {
+			pattern = MessageFormatCache.getPattern(bundle, prefix != null ? prefix+this.key : this.key);
+			if (pattern == null) {
 				pattern = "???"+this.key+"???";
 			}
 		}
@@ -117,15 +115,8 @@ public class MessageTag extends BodyTagSupport {
 			if (timeZoneTag != null) timeZone = timeZoneTag.getTimeZone();
 			if (timeZone == null) timeZone = I18nUtil.findTimeZone(pageContext);
 
-			MessageFormat formatter = new MessageFormat(pattern, I18nUtil.findLocale(pageContext));
-			for (Format format : formatter.getFormatsByArgumentIndex()) {
-				if (format != null && format instanceof DateFormat) {
-					((DateFormat)format).setTimeZone(timeZone);
-				}
-			}
-
 			// now format!
-			message = formatter.format(getParams());
+			message = MessageFormatCache.format(pattern, I18nUtil.findLocale(pageContext), timeZone, getParams());
 		}
 
 		// output text
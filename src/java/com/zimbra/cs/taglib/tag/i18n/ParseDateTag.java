@@ -107,18 +107,18 @@ public class ParseDateTag extends BodyTagSupport {
 		if (locale == null) locale = I18nUtil.findLocale(pageContext);
 
 		// create parser
-		DateFormat parser = this.pattern != null ? new SimpleDateFormat(this.pattern, locale) : null;
+		DateFormat parser = this.pattern != null ? DateFormatCache.getPatternInstance(this.pattern, locale, null) : null;
 		if (parser == null) {
 			int dateStyle = I18nUtil.getStyle(this.dateStyle);
 			int timeStyle = I18nUtil.getStyle(this.timeStyle);
 			if (I18nUtil.TYPE_DATE.equalsIgnoreCase(this.type)) {
-				parser = DateFormat.getDateInstance(dateStyle, locale);
+				parser = DateFormatCache.getDateInstance(dateStyle, locale, null);
 			}
 			else if (I18nUtil.TYPE_TIME.equalsIgnoreCase(this.type)) {
-				parser = DateFormat.getTimeInstance(timeStyle, locale);
+				parser = DateFormatCache.getTimeInstance(timeStyle, locale, null);
 			}
 			else {
-				parser = DateFormat.getDateTimeInstance(dateStyle, timeStyle, locale);
+				parser = DateFormatCache.getDateTimeInstance(dateStyle, timeStyle, locale, null);
 			}
 		}
 
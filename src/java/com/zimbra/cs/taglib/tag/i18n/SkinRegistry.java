@@ -0,0 +1,326 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.taglib.tag.i18n;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletContext;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * In-memory view of the skins installed under <code>/skins</code>.
+ * <p>
+ * The directory is scanned once, the first time the registry is requested for a
+ * servlet context, and then kept up to date by a {@link WatchService}. Skin
+ * existence and message/key override checks are answered from memory instead
+ * of stat'ing the filesystem on every bundle lookup. When the files of a skin
+ * change, the bundles cached for that skin are cleared.
+ * <p>
+ * If the webapp isn't exploded or the directory can't be watched, the registry
+ * falls back to checking the filesystem directly.
+ */
+public class SkinRegistry {
+
+	//
+	// Constants
+	//
+
+	private static final String ATTR_REGISTRY = SkinRegistry.class.getName();
+
+	private static final String SKINS_DIR = "/skins";
+	private static final String[] RESOURCE_DIRS = { "messages", "keys" };
+
+	//
+	// Data
+	//
+
+	private final ServletContext mContext;
+	private final Path mRoot;
+	private volatile WatchService mWatcher;
+	private Thread mThread;
+
+	/** Installed skins, mapped to their message and key files (e.g. "/messages/ZmMsg.properties"). */
+	private final Map<String,Set<String>> mSkins = new ConcurrentHashMap<String,Set<String>>();
+
+	//
+	// Constructors
+	//
+
+	private SkinRegistry(ServletContext context) {
+		mContext = context;
+		String root = context.getRealPath(SKINS_DIR);
+		mRoot = root != null ? Paths.get(root) : null;
+		if (mRoot == null || !Files.isDirectory(mRoot)) {
+			ZimbraLog.webclient.debug("skin directory not available; checking skins on the filesystem");
+			return;
+		}
+		try {
+			mWatcher = FileSystems.getDefault().newWatchService();
+			register(mRoot);
+		}
+		catch (IOException e) {
+			ZimbraLog.webclient.warn("unable to watch skin directory "+mRoot, e);
+			close();
+			return;
+		}
+		scanAll();
+
+		mThread = new Thread("SkinRegistryWatcher") {
+			@Override
+			public void run() {
+				watch();
+			}
+		};
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	//
+	// Static functions
+	//
+
+	public static SkinRegistry getInstance(ServletContext context) {
+		SkinRegistry registry = (SkinRegistry)context.getAttribute(ATTR_REGISTRY);
+		if (registry == null) {
+			synchronized (SkinRegistry.class) {
+				registry = (SkinRegistry)context.getAttribute(ATTR_REGISTRY);
+				if (registry == null) {
+					registry = new SkinRegistry(context);
+					context.setAttribute(ATTR_REGISTRY, registry);
+				}
+			}
+		}
+		return registry;
+	}
+
+	/**
+	 * Stops the context's registry, if it has one. Called when the context is
+	 * destroyed so that the watcher thread doesn't outlive the webapp.
+	 *
+	 * @see SkinRegistryListener
+	 */
+	public static void destroy(ServletContext context) {
+		SkinRegistry registry;
+		synchronized (SkinRegistry.class) {
+			registry = (SkinRegistry)context.getAttribute(ATTR_REGISTRY);
+			context.removeAttribute(ATTR_REGISTRY);
+		}
+		if (registry != null) {
+			registry.close();
+		}
+	}
+
+	//
+	// Public methods
+	//
+
+	/** Returns true if the skin is installed, i.e. has a manifest. */
+	public boolean hasSkin(String skin) {
+		if (skin == null) {
+			return false;
+		}
+		if (mWatcher == null) {
+			return getRealFile("/"+skin+"/"+I18nUtil.MANIFEST).exists();
+		}
+		return mSkins.containsKey(skin);
+	}
+
+	/**
+	 * Returns the skin's override for a message or key file, or null if the
+	 * skin doesn't override it.
+	 *
+	 * @param basename the resource path, e.g. "/messages/ZmMsg.properties"
+	 */
+	public File getResourceFile(String skin, String basename) {
+		if (skin == null) {
+			return null;
+		}
+		if (mWatcher == null) {
+			File file = getRealFile("/"+skin+basename);
+			return file.exists() ? file : null;
+		}
+		Set<String> resources = mSkins.get(skin);
+		if (resources == null || !resources.contains(basename)) {
+			return null;
+		}
+		return mRoot.resolve(skin+basename).toFile();
+	}
+
+	/** Stops watching the skin directory. */
+	public void close() {
+		WatchService watcher = mWatcher;
+		mWatcher = null;
+		if (watcher != null) {
+			try {
+				watcher.close();
+			}
+			catch (IOException e) {
+				// ignore
+			}
+		}
+		Thread thread = mThread;
+		if (thread != null && thread != Thread.currentThread()) {
+			thread.interrupt();
+		}
+	}
+
+	//
+	// Private methods
+	//
+
+	private File getRealFile(String path) {
+		return new File(mContext.getRealPath(SKINS_DIR+path));
+	}
+
+	private void scanAll() {
+		Set<String> found = new HashSet<String>();
+		try (DirectoryStream<Path> dirs = Files.newDirectoryStream(mRoot)) {
+			for (Path dir : dirs) {
+				if (Files.isDirectory(dir)) {
+					String skin = dir.getFileName().toString();
+					found.add(skin);
+					scan(skin);
+				}
+			}
+		}
+		catch (IOException e) {
+			ZimbraLog.webclient.warn("unable to scan skin directory "+mRoot, e);
+		}
+		mSkins.keySet().retainAll(found);
+	}
+
+	private void scan(String skin) {
+		Path dir = mRoot.resolve(skin);
+		if (!Files.isDirectory(dir)) {
+			mSkins.remove(skin);
+			return;
+		}
+		try {
+			register(dir);
+			Set<String> resources = new HashSet<String>();
+			for (String name : RESOURCE_DIRS) {
+				Path resourceDir = dir.resolve(name);
+				if (Files.isDirectory(resourceDir)) {
+					scanResources(dir, resourceDir, resources);
+				}
+			}
+			if (Files.isRegularFile(dir.resolve(I18nUtil.MANIFEST))) {
+				mSkins.put(skin, Collections.unmodifiableSet(resources));
+			}
+			else {
+				mSkins.remove(skin);
+			}
+		}
+		catch (IOException e) {
+			ZimbraLog.webclient.warn("unable to scan skin "+skin, e);
+		}
+	}
+
+	private void scanResources(Path skinDir, Path dir, Set<String> resources) throws IOException {
+		register(dir);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				if (Files.isDirectory(file)) {
+					scanResources(skinDir, file, resources);
+				}
+				else {
+					resources.add("/"+skinDir.relativize(file).toString().replace(File.separatorChar, '/'));
+				}
+			}
+		}
+	}
+
+	private void register(Path dir) throws IOException {
+		WatchService watcher = mWatcher;
+		if (watcher != null) {
+			dir.register(watcher,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		}
+	}
+
+	private void watch() {
+		while (true) {
+			WatchService watcher = mWatcher;
+			if (watcher == null) {
+				return;
+			}
+			WatchKey key;
+			try {
+				key = watcher.take();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (ClosedWatchServiceException e) {
+				return;
+			}
+
+			Path dir = (Path)key.watchable();
+			Set<String> changed = new HashSet<String>();
+			boolean overflow = false;
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					overflow = true;
+					continue;
+				}
+				Path path = mRoot.relativize(dir.resolve((Path)event.context()));
+				if (path.getNameCount() > 0) {
+					changed.add(path.getName(0).toString());
+				}
+			}
+			key.reset();
+
+			if (overflow) {
+				changed.addAll(mSkins.keySet());
+				scanAll();
+			}
+			else {
+				for (String skin : changed) {
+					scan(skin);
+				}
+			}
+			for (String skin : changed) {
+				ZimbraLog.webclient.debug("skin changed: "+skin);
+				I18nUtil.clearSkinBundles(mContext, skin);
+			}
+			if (!changed.isEmpty()) {
+				// a skin's message files may add or drop locales
+				GetValidLocaleTag.clearCache();
+			}
+		}
+	}
+
+} // class SkinRegistry
@@ -0,0 +1,47 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.taglib.tag.msg;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import javax.servlet.jsp.JspException;
+
+import com.zimbra.cs.taglib.bean.HtmlEncoder;
+import com.zimbra.cs.taglib.tag.ZimbraSimpleTag;
+
+/**
+ * Writes plain text (typically a text/plain message body) to the page as HTML, converting it a
+ * buffer at a time instead of building the whole HTML string first.
+ */
+public class PlainTextToHtmlTag extends ZimbraSimpleTag {
+
+    private static final long DEFAULT_LINKIFY_LIMIT = 1024 * 1024;
+
+    private String mValue;
+    private long mLinkifyLimit = DEFAULT_LINKIFY_LIMIT;
+
+    public void setValue(String value) { this.mValue = value; }
+    public void setLinkifyLimit(long limit) { this.mLinkifyLimit = limit; }
+
+    public void doTag() throws JspException, IOException {
+        if (mValue == null) {
+            return;
+        }
+        HtmlEncoder.textToHtml(new StringReader(mValue), getJspContext().getOut(), mLinkifyLimit);
+    }
+}